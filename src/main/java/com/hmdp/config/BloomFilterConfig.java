@@ -0,0 +1,75 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.BloomFilter;
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+
+@Slf4j
+@Configuration
+public class BloomFilterConfig {
+
+    /**
+     * 启动时每批加载的id数量
+     */
+    private static final int SEED_BATCH_SIZE = 5000;
+
+    @Bean
+    public BloomFilter shopBloomFilter(
+            @Value("${hmdp.bloom.shop.expected-insertions:100000}") long expectedInsertions,
+            @Value("${hmdp.bloom.shop.fpp:0.01}") double fpp) {
+        return new BloomFilter(expectedInsertions, fpp);
+    }
+
+    @Bean
+    public BloomFilter blogBloomFilter(
+            @Value("${hmdp.bloom.blog.expected-insertions:1000000}") long expectedInsertions,
+            @Value("${hmdp.bloom.blog.fpp:0.01}") double fpp) {
+        return new BloomFilter(expectedInsertions, fpp);
+    }
+
+    /**
+     * 启动时从数据库加载所有店铺和博客的id
+     */
+    @Bean
+    public ApplicationRunner bloomFilterInitializer(
+            CacheClient cacheClient, IShopService shopService, IBlogService blogService,
+            BloomFilter shopBloomFilter, BloomFilter blogBloomFilter) {
+        return args -> {
+            cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+            cacheClient.registerBloomFilter(CACHE_BLOG_KEY, blogBloomFilter);
+            seed(shopBloomFilter, shopService);
+            seed(blogBloomFilter, blogService);
+            log.info("布隆过滤器初始化完成, shop: {}, blog: {}", shopBloomFilter.getStats(), blogBloomFilter.getStats());
+        };
+    }
+
+    private static <T> void seed(BloomFilter bloomFilter, IService<T> service) {
+        //按id分批加载，避免一次查出全表
+        long lastId = 0;
+        while (true) {
+            List<Object> ids = service.listObjs(new QueryWrapper<T>()
+                    .select("id").gt("id", lastId).orderByAsc("id").last("limit " + SEED_BATCH_SIZE));
+            for (Object id : ids) {
+                bloomFilter.put(id);
+            }
+            if (ids.size() < SEED_BATCH_SIZE) {
+                break;
+            }
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+        }
+        bloomFilter.setReady(true);
+    }
+}
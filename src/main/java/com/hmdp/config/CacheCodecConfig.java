@@ -0,0 +1,91 @@
+package com.hmdp.config;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+@Configuration
+public class CacheCodecConfig {
+
+    /**
+     * 值为字节数组的RedisTemplate，配合CacheCodec读写缓存
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> byteRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashKeySerializer(RedisSerializer.string());
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    //注意：字段只能在末尾追加，不能删除或调整顺序
+
+    @Bean
+    public CacheCodec<Shop> shopCodec() {
+        return BinaryCacheCodec.builder(Shop.class, Shop::new)
+                .longField(Shop::getId, Shop::setId)
+                .stringField(Shop::getName, Shop::setName)
+                .longField(Shop::getTypeId, Shop::setTypeId)
+                .stringField(Shop::getImages, Shop::setImages)
+                .stringField(Shop::getArea, Shop::setArea)
+                .stringField(Shop::getAddress, Shop::setAddress)
+                .doubleField(Shop::getX, Shop::setX)
+                .doubleField(Shop::getY, Shop::setY)
+                .longField(Shop::getAvgPrice, Shop::setAvgPrice)
+                .intField(Shop::getSold, Shop::setSold)
+                .intField(Shop::getComments, Shop::setComments)
+                .intField(Shop::getScore, Shop::setScore)
+                .stringField(Shop::getOpenHours, Shop::setOpenHours)
+                .dateTimeField(Shop::getCreateTime, Shop::setCreateTime)
+                .dateTimeField(Shop::getUpdateTime, Shop::setUpdateTime)
+                .build();
+    }
+
+    @Bean
+    public CacheCodec<Blog> blogCodec() {
+        return BinaryCacheCodec.builder(Blog.class, Blog::new)
+                .longField(Blog::getId, Blog::setId)
+                .longField(Blog::getShopId, Blog::setShopId)
+                .longField(Blog::getUserId, Blog::setUserId)
+                .stringField(Blog::getTitle, Blog::setTitle)
+                .stringField(Blog::getImages, Blog::setImages)
+                .stringField(Blog::getContent, Blog::setContent)
+                .intField(Blog::getLiked, Blog::setLiked)
+                .intField(Blog::getComments, Blog::setComments)
+                .dateTimeField(Blog::getCreateTime, Blog::setCreateTime)
+                .dateTimeField(Blog::getUpdateTime, Blog::setUpdateTime)
+                .build();
+    }
+
+    @Bean
+    public CacheCodec<UserDTO> userDTOCodec() {
+        return BinaryCacheCodec.builder(UserDTO.class, UserDTO::new)
+                .longField(UserDTO::getId, UserDTO::setId)
+                .stringField(UserDTO::getNickName, UserDTO::setNickName)
+                .stringField(UserDTO::getIcon, UserDTO::setIcon)
+                .build();
+    }
+
+    @Bean
+    public CacheCodec<ShopType> shopTypeCodec() {
+        return BinaryCacheCodec.builder(ShopType.class, ShopType::new)
+                .longField(ShopType::getId, ShopType::setId)
+                .stringField(ShopType::getName, ShopType::setName)
+                .stringField(ShopType::getIcon, ShopType::setIcon)
+                .intField(ShopType::getSort, ShopType::setSort)
+                .dateTimeField(ShopType::getCreateTime, ShopType::setCreateTime)
+                .dateTimeField(ShopType::getUpdateTime, ShopType::setUpdateTime)
+                .build();
+    }
+}
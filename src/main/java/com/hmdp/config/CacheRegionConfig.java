@@ -0,0 +1,53 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheRegion;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 各类数据的缓存区域，每个区域使用自己的锁前缀，重建互不影响
+ */
+@Configuration
+public class CacheRegionConfig {
+
+    @Bean
+    public CacheRegion shopRegion(@Value("${hmdp.cache.regions.shop.strategy:MUTEX}") CacheRegion.Strategy strategy) {
+        return CacheRegion.builder("shop", CACHE_SHOP_KEY)
+                .lockPrefix(LOCK_SHOP_KEY)
+                .ttl(CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                .strategy(strategy)
+                .build();
+    }
+
+    @Bean
+    public CacheRegion blogRegion(@Value("${hmdp.cache.regions.blog.strategy:MUTEX}") CacheRegion.Strategy strategy) {
+        return CacheRegion.builder("blog", CACHE_BLOG_KEY)
+                .ttl(CACHE_BLOG_TTL, TimeUnit.MINUTES)
+                .strategy(strategy)
+                .build();
+    }
+
+    @Bean
+    public CacheRegion userRegion(@Value("${hmdp.cache.regions.user.strategy:PASS_THROUGH}") CacheRegion.Strategy strategy) {
+        return CacheRegion.builder("user", CACHE_USER_KEY)
+                .ttl(CACHE_USER_TTL, TimeUnit.MINUTES)
+                .strategy(strategy)
+                .build();
+    }
+
+    /**
+     * 店铺的优惠券列表，包含秒杀库存，有效期较短
+     */
+    @Bean
+    public CacheRegion voucherRegion(@Value("${hmdp.cache.regions.voucher.strategy:MUTEX}") CacheRegion.Strategy strategy) {
+        return CacheRegion.builder("voucher", CACHE_VOUCHER_KEY)
+                .ttl(CACHE_VOUCHER_TTL, TimeUnit.MINUTES)
+                .strategy(strategy)
+                .build();
+    }
+}
@@ -1,19 +1,127 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.RabbitMQConstants;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueBuilder;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 @ConditionalOnClass(RabbitTemplate.class)
 public class MqConfig {
 
+    /**
+     * 订单队列的初始消费者数
+     */
+    @Value("${hmdp.order.listener.concurrency:2}")
+    private int concurrency;
+
+    /**
+     * 消息积压时最多扩容到的消费者数
+     */
+    @Value("${hmdp.order.listener.max-concurrency:8}")
+    private int maxConcurrency;
+
+    /**
+     * 每个消费者预取的消息数
+     */
+    @Value("${hmdp.order.listener.prefetch:250}")
+    private int prefetch;
+
+    /**
+     * 两次增加消费者之间的最小间隔（毫秒）
+     */
+    @Value("${hmdp.order.listener.scale-up-interval:2000}")
+    private long scaleUpInterval;
+
     @Bean
     public MessageConverter messageConverter(){
         return new Jackson2JsonMessageConverter();
     }
 
+    /**
+     * 逐条消费的监听容器：手动确认，失败的消息由监听器转入重试队列后再确认
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory orderListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        configureOrderListener(factory, prefetch);
+        return factory;
+    }
+
+    /**
+     * 批量消费的监听容器：攒够batchSize条或等待receiveTimeout毫秒后整批交给监听器，
+     * 手动确认，监听器处理完一批后用最后一条消息的deliveryTag一次确认整批
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory,
+            @Value("${hmdp.order.batch.size:100}") int batchSize,
+            @Value("${hmdp.order.batch.timeout:50}") long receiveTimeout) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(receiveTimeout);
+        //预取数不能小于批大小，否则凑不满一批
+        configureOrderListener(factory, Math.max(prefetch, batchSize));
+        return factory;
+    }
+
+    private void configureOrderListener(SimpleRabbitListenerContainerFactory factory, int prefetchCount) {
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setPrefetchCount(prefetchCount);
+        //连续多次拉取到消息时增加消费者，连续空闲时减少，最多maxConcurrency个
+        factory.setConcurrentConsumers(concurrency);
+        factory.setMaxConcurrentConsumers(Math.max(concurrency, maxConcurrency));
+        factory.setStartConsumerMinInterval(scaleUpInterval);
+    }
+
+    /**
+     * 订单消息的重试队列：第n次重试延迟initialDelay * multiplier^(n-1)毫秒
+     * 每一级一个带TTL的队列，没有消费者，消息过期后死信回订单交换机，重新进入订单队列
+     * 队列名包含延迟时间，修改延迟时声明新的队列，不会与已存在队列的参数冲突
+     */
+    @Bean
+    public Declarables orderRetryQueues(@Value("${hmdp.order.retry.initial-delay:1000}") long initialDelay,
+                                        @Value("${hmdp.order.retry.multiplier:4}") double multiplier,
+                                        @Value("${hmdp.order.retry.max-attempts:3}") int maxAttempts) {
+        List<Declarable> queues = new ArrayList<>(maxAttempts);
+        double delay = initialDelay;
+        for (int i = 0; i < maxAttempts; i++) {
+            queues.add(QueueBuilder.durable(RabbitMQConstants.ORDER_RETRY_QUEUE_PREFIX + (long) delay + "ms")
+                    .ttl((int) delay)
+                    .deadLetterExchange(RabbitMQConstants.ORDER_EXCHANGE)
+                    .deadLetterRoutingKey(RabbitMQConstants.ORDER_ROUTING_KEY)
+                    .build());
+            delay *= multiplier;
+        }
+        return new Declarables(queues);
+    }
+
+    /**
+     * 订单的死信队列：重试耗尽或者无法解析的消息，人工处理
+     */
+    @Bean
+    public Queue orderDeadLetterQueue() {
+        return QueueBuilder.durable(RabbitMQConstants.ORDER_DLQ).build();
+    }
+
 }
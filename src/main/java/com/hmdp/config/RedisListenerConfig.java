@@ -0,0 +1,53 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.OrderStatusRegistry;
+import com.hmdp.utils.SoldOutRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_RESET_CHANNEL;
+
+@Configuration
+public class RedisListenerConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(
+            RedisConnectionFactory connectionFactory, CacheClient cacheClient, SoldOutRegistry soldOutRegistry,
+            OrderStatusRegistry orderStatusRegistry) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //缓存失效通知，清除本地缓存，批量失效时一条消息包含多个以换行分隔的key
+        container.addMessageListener((message, pattern) -> {
+            for (String key : new String(message.getBody(), StandardCharsets.UTF_8).split("\n")) {
+                cacheClient.evictLocal(key);
+            }
+        }, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //新增数据通知，加入本地布隆过滤器
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.onBloomFilterAdd(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_BLOOM_ADD_CHANNEL));
+        //秒杀售罄和补充库存通知，更新本地售罄标记
+        container.addMessageListener(
+                (message, pattern) -> soldOutRegistry.onSoldOut(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        container.addMessageListener(
+                (message, pattern) -> soldOutRegistry.onReset(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_STOCK_RESET_CHANNEL));
+        //订单状态通知，唤醒长轮询的请求
+        container.addMessageListener(
+                (message, pattern) -> orderStatusRegistry.onStatusChange(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(ORDER_STATUS_CHANNEL));
+        return container;
+    }
+
+}
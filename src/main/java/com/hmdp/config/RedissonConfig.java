@@ -1,19 +1,28 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class RedissonConfig {
 
+    /**
+     * 与StringRedisTemplate使用同一个redis，在spring.redis中配置
+     */
     @Bean
-    public RedissonClient redissonClient(){
+    public RedissonClient redissonClient(@Value("${spring.redis.host}") String host,
+                                         @Value("${spring.redis.port:6379}") int port,
+                                         @Value("${spring.redis.database:0}") int database,
+                                         @Value("${spring.redis.password:}") String password){
         //配置
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://47.109.137.60:6379").setDatabase(0);
+        config.useSingleServer().setAddress("redis://" + host + ":" + port).setDatabase(database)
+                .setPassword(StrUtil.emptyToNull(password));
         //创建RedissonClient对象
         return Redisson.create(config);
     }
@@ -0,0 +1,124 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.listener.VoucherOrderListener;
+import com.hmdp.listener.VoucherOrderStreamListener;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.OrderFallbackQueue;
+import com.hmdp.utils.OrderPublisher;
+import com.hmdp.utils.OrderStatusRegistry;
+import com.hmdp.utils.RateLimiter;
+import com.hmdp.utils.SeckillReconciler;
+import com.hmdp.utils.SoldOutRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 运行指标查询
+ * </p>
+ */
+@RestController
+@RequestMapping("/monitor")
+public class MonitorController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private RateLimiter rateLimiter;
+
+    @Resource
+    private OrderStatusRegistry orderStatusRegistry;
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    @Resource
+    private VoucherOrderListener voucherOrderListener;
+
+    @Resource
+    private OrderFallbackQueue orderFallbackQueue;
+
+    @Resource
+    private OrderPublisher orderPublisher;
+
+    /**
+     * 只有使用redis stream传递订单时存在
+     */
+    @Autowired(required = false)
+    private VoucherOrderStreamListener voucherOrderStreamListener;
+
+    /**
+     * 查询各级缓存的命中统计
+     * @return 本地缓存和redis的命中/未命中次数
+     */
+    @GetMapping("/cache")
+    public Result cacheStats() {
+        return Result.ok(cacheClient.getStats());
+    }
+
+    /**
+     * 查询当前的热点key
+     * @return 热点key、QPS以及是否已在本地常驻
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(cacheClient.getHotKeys());
+    }
+
+    /**
+     * 查询启动时缓存预热的进度
+     * @return 预热状态、已写入的geo和缓存数量
+     */
+    @GetMapping("/warmup")
+    public Result warmup() {
+        return Result.ok(cacheWarmer.getProgress());
+    }
+
+    /**
+     * 查询秒杀的本地售罄标记、限流、对账和订单stream的消费情况
+     * @return 已售罄的优惠券、本地拒绝的请求数、限流拒绝的请求数、redis与数据库的差异和订单stream的消费统计
+     */
+    @GetMapping("/seckill")
+    public Result seckill() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("soldOut", soldOutRegistry.getStats());
+        stats.put("rateLimit", rateLimiter.getStats());
+        stats.put("statusWaiting", orderStatusRegistry.getWaiting());
+        stats.put("reconcile", seckillReconciler.getStats());
+        if (voucherOrderStreamListener != null) {
+            stats.put("orderStream", voucherOrderStreamListener.getStats());
+        }
+        return Result.ok(stats);
+    }
+
+    /**
+     * 查询订单消息队列的积压和消费延迟，用于在秒杀期间调整消费者数量
+     * @return 订单队列、各级重试队列和死信队列的消息数与消费者数，消费、重试、转入死信的消息数、消费延迟，发送窗口和本地订单队列的积压
+     */
+    @GetMapping("/order-queue")
+    public Result orderQueue() {
+        if (voucherOrderStreamListener != null) {
+            return Result.ok(voucherOrderStreamListener.getStats());
+        }
+        Map<String, Object> stats = voucherOrderListener.getStats();
+        stats.put("publisher", orderPublisher.getStats());
+        stats.put("fallback", orderFallbackQueue.getStats());
+        return Result.ok(stats);
+    }
+}
@@ -2,11 +2,15 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.UserHolder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 /**
  * <p>
@@ -23,6 +27,12 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    /**
+     * 可以补充秒杀库存的管理员用户id
+     */
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminUserIds;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -30,7 +40,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -45,6 +55,21 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 补充秒杀券库存，需要登录且为管理员
+     * @param voucherId 秒杀券id
+     * @param count 补充的数量
+     * @return 无
+     */
+    @PostMapping("seckill/{id}/stock")
+    public Result replenishSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || !adminUserIds.contains(user.getId())) {
+            return Result.fail("无权限");
+        }
+        return voucherService.replenishSeckillStock(voucherId, count);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
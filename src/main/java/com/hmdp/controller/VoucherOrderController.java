@@ -3,10 +3,16 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusRegistry;
+import com.hmdp.utils.RateLimit;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -25,8 +31,24 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private OrderStatusRegistry orderStatusRegistry;
+
     @PostMapping("seckill/{id}")
+    @RateLimit(userPermits = 2, userBurst = 5, voucherLimit = 2000)
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的创建状态，只读redis
+     * @param orderId 秒杀返回的订单id
+     * @param wait 订单仍在处理中时是否挂起请求，等到结果或超时后返回
+     * @return PENDING、CREATED或FAILED，失败时包含原因
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(
+            @PathVariable("id") Long orderId, @RequestParam(value = "wait", defaultValue = "false") boolean wait) {
+        return orderStatusRegistry.query(orderId, UserHolder.getUser().getId(), wait);
+    }
 }
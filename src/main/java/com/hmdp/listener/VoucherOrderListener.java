@@ -4,18 +4,38 @@ import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.entity.VoucherOrderMessage;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusRegistry;
 import com.hmdp.utils.RabbitMQConstants;
 import io.lettuce.core.dynamic.annotation.Key;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
+import com.rabbitmq.client.Channel;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.QueueInformation;
 import org.springframework.amqp.rabbit.annotation.Exchange;
 import org.springframework.amqp.rabbit.annotation.Queue;
 import org.springframework.amqp.rabbit.annotation.QueueBinding;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 @Component
 @Slf4j
@@ -25,32 +45,250 @@ public class VoucherOrderListener {
     private IVoucherOrderService voucherOrderService;
 
     @Resource
-    private RedissonClient redissonClient;
+    private OrderStatusRegistry orderStatusRegistry;
 
+    @Resource
+    private MessageConverter messageConverter;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @Resource
+    private AmqpAdmin amqpAdmin;
+
+    /**
+     * 各级重试队列，按延迟从小到大排列
+     */
+    @Resource
+    private Declarables orderRetryQueues;
+
+    private List<String> retryQueues;
+
+    /**
+     * 转入重试队列或死信队列时等待broker确认的最长时间（毫秒）
+     */
+    @Value("${hmdp.order.publisher.confirm-timeout:5000}")
+    private long confirmTimeout;
+
+    private final LongAdder consumed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private volatile long lastLagMillis;
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        retryQueues = orderRetryQueues.getDeclarablesByType(org.springframework.amqp.core.Queue.class).stream()
+                .map(org.springframework.amqp.core.Queue::getName)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 逐条消费，hmdp.order.transport为rabbitmq且hmdp.order.batch.enabled为false时启用
+     * 处理失败时转入重试队列，转入成功后再确认
+     */
     @RabbitListener(bindings = @QueueBinding(
             value = @Queue(name = RabbitMQConstants.ORDER_QUEUE,durable = "true"),
             exchange = @Exchange(name = RabbitMQConstants.ORDER_EXCHANGE),
             key = RabbitMQConstants.ORDER_ROUTING_KEY
-    ))
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //获取用户
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //获取锁
-        boolean isLock = lock.tryLock();
-        //判断是否获取锁成功
-        if(!isLock){
-            //获取锁失败,返回错误信息或重试
-            log.error("不允许重复下单");
+    ), containerFactory = "orderListenerContainerFactory",
+            autoStartup = "#{'${hmdp.order.transport:rabbitmq}' == 'rabbitmq' && !${hmdp.order.batch.enabled:false}}")
+    public void handleVoucherOrder(Message message, Channel channel) throws IOException {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        //1.解析消息，无法解析的消息直接转入死信队列
+        VoucherOrder voucherOrder = convert(message);
+        if (voucherOrder == null) {
+            settle(channel, deliveryTag, deadLetter(message, "消息无法解析"));
             return;
         }
+        //2.创建订单，一人一单由数据库唯一索引保证，不再需要按用户加锁
+        boolean routed = true;
         try {
             voucherOrderService.createVoucherOrder(voucherOrder);
-        }finally {
-            //释放锁
-            lock.unlock();
+        } catch (Exception e) {
+            log.error("创建订单失败, orderId: {}", voucherOrder.getId(), e);
+            routed = retry(message, e.getMessage());
+        }
+        settle(channel, deliveryTag, routed);
+    }
+
+    /**
+     * 批量消费，hmdp.order.transport为rabbitmq且hmdp.order.batch.enabled为true时启用
+     * 一批消息在一个事务中去重、扣减库存并批量写入订单，完成后整批确认
+     * 整批失败时逐条重新处理，只有失败的消息转入重试队列
+     */
+    @RabbitListener(queues = RabbitMQConstants.ORDER_QUEUE,
+            containerFactory = "batchListenerContainerFactory",
+            autoStartup = "#{'${hmdp.order.transport:rabbitmq}' == 'rabbitmq' && ${hmdp.order.batch.enabled:false}}")
+    public void handleVoucherOrders(List<Message> messages, Channel channel) throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        //1.解析消息，无法解析的消息直接转入死信队列
+        List<Message> accepted = new ArrayList<>(messages.size());
+        List<VoucherOrder> voucherOrders = new ArrayList<>(messages.size());
+        List<Message> unrouted = new ArrayList<>();
+        for (Message message : messages) {
+            VoucherOrder voucherOrder = convert(message);
+            if (voucherOrder != null) {
+                accepted.add(message);
+                voucherOrders.add(voucherOrder);
+            } else if (!deadLetter(message, "消息无法解析")) {
+                unrouted.add(message);
+            }
+        }
+        //2.整批创建订单
+        try {
+            int created = voucherOrderService.createVoucherOrders(voucherOrders);
+            log.debug("批量创建订单, 消息数: {}, 创建数: {}", voucherOrders.size(), created);
+        } catch (Exception e) {
+            //3.整批回滚，逐条处理找出失败的消息
+            log.warn("批量创建订单失败，逐条处理, 消息数: {}", voucherOrders.size(), e);
+            for (int i = 0; i < voucherOrders.size(); i++) {
+                try {
+                    voucherOrderService.createVoucherOrders(Collections.singletonList(voucherOrders.get(i)));
+                } catch (Exception ex) {
+                    log.error("创建订单失败, orderId: {}", voucherOrders.get(i).getId(), ex);
+                    if (!retry(accepted.get(i), ex.getMessage())) {
+                        unrouted.add(accepted.get(i));
+                    }
+                }
+            }
+        }
+        //4.确认：全部处理或转入重试队列时，用最后一条的deliveryTag一次确认整批
+        if (unrouted.isEmpty()) {
+            channel.basicAck(messages.get(messages.size() - 1).getMessageProperties().getDeliveryTag(), true);
+            return;
+        }
+        //有消息没能转入重试队列，逐条确认，这些消息退回订单队列
+        for (Message message : messages) {
+            settle(channel, message.getMessageProperties().getDeliveryTag(), !unrouted.contains(message));
+        }
+    }
+
+    private VoucherOrder convert(Message message) {
+        consumed.increment();
+        MessageProperties properties = message.getMessageProperties();
+        //只统计第一次投递的延迟，重试的消息包含了重试队列中的等待时间
+        if (properties.getTimestamp() != null && attemptOf(message) == 0) {
+            long lag = System.currentTimeMillis() - properties.getTimestamp().getTime();
+            lastLagMillis = lag;
+            maxLagMillis.accumulateAndGet(lag, Math::max);
+        }
+        try {
+            return (VoucherOrder) messageConverter.fromMessage(message);
+        } catch (Exception e) {
+            log.error("订单消息无法解析, messageId: {}", properties.getMessageId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 转入下一级重试队列，重试次数用完后转入死信队列
+     * @return 是否转入成功，失败时消息不能确认
+     */
+    private boolean retry(Message message, String reason) {
+        int attempt = attemptOf(message);
+        if (attempt >= retryQueues.size()) {
+            return deadLetter(message, reason);
+        }
+        MessageProperties properties = message.getMessageProperties();
+        properties.setHeader(RabbitMQConstants.ORDER_ATTEMPT_HEADER, attempt + 1);
+        if (!send(retryQueues.get(attempt), message)) {
+            log.error("订单消息转入重试队列失败, attempt: {}", attempt + 1);
+            return false;
+        }
+        retried.increment();
+        return true;
+    }
+
+    private boolean deadLetter(Message message, String reason) {
+        message.getMessageProperties().setHeader("x-exception-message", reason);
+        if (!send(RabbitMQConstants.ORDER_DLQ, message)) {
+            log.error("订单消息转入死信队列失败");
+            return false;
+        }
+        deadLettered.increment();
+        log.error("订单消息转入死信队列, reason: {}", reason);
+        return true;
+    }
+
+    /**
+     * 通过默认交换机按队列名发送，等待broker确认，被拒绝、超时或者无法路由（mandatory退回）都视为失败
+     * 只有发送成功后原消息才能确认，否则退回订单队列重新投递
+     */
+    private boolean send(String queue, Message message) {
+        CorrelationData correlationData = new CorrelationData();
+        try {
+            rabbitTemplate.send("", queue, message, correlationData);
+            CorrelationData.Confirm confirm = correlationData.getFuture().get(confirmTimeout, TimeUnit.MILLISECONDS);
+            if (!confirm.isAck()) {
+                log.error("消息被broker拒绝, queue: {}, reason: {}", queue, confirm.getReason());
+                return false;
+            }
+            if (correlationData.getReturnedMessage() != null) {
+                log.error("消息无法路由，已被退回, queue: {}", queue);
+                return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            log.error("发送消息失败, queue: {}", queue, e);
+            return false;
+        }
+    }
+
+    private static int attemptOf(Message message) {
+        Object attempt = message.getMessageProperties().getHeaders().get(RabbitMQConstants.ORDER_ATTEMPT_HEADER);
+        return attempt instanceof Number ? ((Number) attempt).intValue() : 0;
+    }
+
+    /**
+     * 已经处理或转入其它队列时确认，否则退回订单队列重新投递
+     */
+    private static void settle(Channel channel, long deliveryTag, boolean handled) throws IOException {
+        if (handled) {
+            channel.basicAck(deliveryTag, false);
+        } else {
+            channel.basicNack(deliveryTag, false, true);
+        }
+    }
+
+    /**
+     * 订单队列、重试队列和死信队列的积压，以及消费延迟
+     * maxLagMillis为上次查询以来的最大延迟
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("consumed", consumed.sum());
+        stats.put("retried", retried.sum());
+        stats.put("deadLettered", deadLettered.sum());
+        stats.put("lastLagMillis", lastLagMillis);
+        stats.put("maxLagMillis", maxLagMillis.getAndSet(0));
+        Map<String, Object> queues = new LinkedHashMap<>();
+        queues.put(RabbitMQConstants.ORDER_QUEUE, queueInfo(RabbitMQConstants.ORDER_QUEUE));
+        for (String retryQueue : retryQueues) {
+            queues.put(retryQueue, queueInfo(retryQueue));
+        }
+        queues.put(RabbitMQConstants.ORDER_DLQ, queueInfo(RabbitMQConstants.ORDER_DLQ));
+        stats.put("queues", queues);
+        return stats;
+    }
+
+    private Map<String, Object> queueInfo(String name) {
+        Map<String, Object> info = new LinkedHashMap<>();
+        try {
+            QueueInformation queue = amqpAdmin.getQueueInfo(name);
+            if (queue != null) {
+                info.put("messages", queue.getMessageCount());
+                info.put("consumers", queue.getConsumerCount());
+            }
+        } catch (Exception e) {
+            info.put("error", e.getMessage());
         }
+        return info;
     }
 
 }
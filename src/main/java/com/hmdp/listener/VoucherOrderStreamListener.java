@@ -0,0 +1,440 @@
+package com.hmdp.listener;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillStock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StringRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_GROUP;
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_REGISTRY_KEY;
+
+/**
+ * 通过redis stream消费订单，hmdp.order.transport为stream时启用
+ * 1.秒杀脚本扣减库存成功后把订单写入该秒杀券（分片）的订单stream，stream登记在stream.orders.keys中；
+ *   定时刷新登记集合，为新的stream创建消费者组g1
+ * 2.多个消费者线程通过消费者组批量读取并创建订单，成功后XACK；不同的stream可能在不同的slot，逐个stream非阻塞读取，
+ *   所有stream都没有消息时等待一段时间
+ * 3.批量处理失败时逐条重试自己的pending-list，仍然失败的消息留在pending-list中
+ * 4.定时任务用XCLAIM认领各个stream中空闲超时的pending消息（失败的消息、宕机实例未确认的消息）重新处理，
+ *   投递次数超过上限的消息转入共用的死信stream，不再重试
+ * 5.秒杀已经结束、消息全部投递并确认的stream从登记集合中移除，消费者不再读取，stream保留一段时间后过期
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.order.transport", havingValue = "stream")
+public class VoucherOrderStreamListener {
+
+    /**
+     * 移出登记集合后stream继续保留的时间，其它节点刷新前仍可能读取
+     */
+    private static final long RETIRED_STREAM_TTL_HOURS = 24;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    /**
+     * 消费者线程数
+     */
+    @Value("${hmdp.order.stream.consumers:1}")
+    private int consumers;
+
+    /**
+     * 每个stream每次读取的最大消息数
+     */
+    @Value("${hmdp.order.stream.count:100}")
+    private int count;
+
+    /**
+     * 所有stream都没有消息时等待的时间（毫秒）
+     */
+    @Value("${hmdp.order.stream.idle:50}")
+    private long idle;
+
+    /**
+     * pending消息空闲超过该时间（毫秒）后可以被认领
+     */
+    @Value("${hmdp.order.stream.claim-idle:60000}")
+    private long claimIdle;
+
+    /**
+     * 最大投递次数，超过后转入死信stream
+     */
+    @Value("${hmdp.order.stream.max-deliveries:5}")
+    private long maxDeliveries;
+
+    /**
+     * 消费者名称前缀，同一实例的消费者线程在后面追加序号，认领线程追加claim
+     */
+    private final String consumerPrefix = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * 已经创建消费者组的stream
+     */
+    private final Set<String> groups = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 消费者线程读取的stream，刷新时整体替换
+     */
+    private volatile List<String> streams = Collections.emptyList();
+
+    private ExecutorService executor;
+
+    private volatile boolean running = true;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        //1.发现已经登记的stream并创建消费者组
+        refreshStreams();
+        //2.启动消费者线程
+        executor = Executors.newFixedThreadPool(consumers, new NamedThreadFactory("order-stream-", false));
+        for (int i = 0; i < consumers; i++) {
+            executor.submit(new VoucherOrderHandler(consumerPrefix + "-" + i));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        executor.awaitTermination(TimeUnit.SECONDS.toMillis(5), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 刷新登记的stream，为新的stream创建消费者组，stream不存在时一起创建
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.stream.refresh-interval:5000}")
+    public synchronized void refreshStreams() {
+        Set<String> members;
+        try {
+            members = stringRedisTemplate.opsForSet().members(ORDER_STREAM_REGISTRY_KEY);
+        } catch (Exception e) {
+            log.error("读取订单stream登记集合失败", e);
+            return;
+        }
+        if (members == null || members.size() == streams.size() && streams.containsAll(members)) {
+            return;
+        }
+        groups.retainAll(members);
+        List<String> refreshed = new ArrayList<>(members.size());
+        for (String stream : members) {
+            if (groups.contains(stream) || createGroup(stream)) {
+                refreshed.add(stream);
+            }
+        }
+        Collections.sort(refreshed);
+        streams = Collections.unmodifiableList(refreshed);
+        log.info("订单stream已刷新, 数量: {}", refreshed.size());
+    }
+
+    private boolean createGroup(String stream) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> ((StringRedisConnection) connection)
+                    .xGroupCreate(stream, ReadOffset.from("0"), ORDER_STREAM_GROUP, true));
+        } catch (Exception e) {
+            //BUSYGROUP，消费者组已经存在
+            if (!String.valueOf(e.getMessage()).contains("BUSYGROUP")) {
+                log.error("创建消费者组失败, stream: {}", stream, e);
+                return false;
+            }
+        }
+        groups.add(stream);
+        return true;
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+
+        private final Consumer consumer;
+
+        private VoucherOrderHandler(String name) {
+            this.consumer = Consumer.from(ORDER_STREAM_GROUP, name);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                boolean read = false;
+                for (String stream : streams) {
+                    try {
+                        //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 100 STREAMS stream.orders:{voucherId} >
+                        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                                consumer,
+                                StreamReadOptions.empty().count(count),
+                                StreamOffset.create(stream, ReadOffset.lastConsumed())
+                        );
+                        //2.判断消息获取是否成功
+                        if (list == null || list.isEmpty()) {
+                            //2.1.如果获取失败，说明该stream没有消息，继续读取下一个stream
+                            continue;
+                        }
+                        //3.如果获取成功，批量创建订单并ACK确认
+                        read = true;
+                        handleRecords(stream, list);
+                    } catch (Exception e) {
+                        if (!running) {
+                            return;
+                        }
+                        log.error("处理订单异常, stream: {}", stream, e);
+                        handlePendingList(stream);
+                    }
+                }
+                //4.所有stream都没有消息，等待一段时间
+                if (!read) {
+                    try {
+                        Thread.sleep(idle);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 逐条重试pending-list中的消息，仍然失败的消息等待认领
+         */
+        private void handlePendingList(String stream) {
+            String lastId = "0";
+            while (running) {
+                try {
+                    //1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 100 STREAMS stream.orders:{voucherId} lastId
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(count),
+                            StreamOffset.create(stream, ReadOffset.from(lastId))
+                    );
+                    //2.判断消息获取是否成功
+                    if (list == null || list.isEmpty()) {
+                        //2.1.如果获取失败，说明pending-list没有异常消息，结束循环
+                        break;
+                    }
+                    //3.逐条处理，跳过仍然失败的消息
+                    for (MapRecord<String, Object, Object> record : list) {
+                        lastId = record.getId().getValue();
+                        try {
+                            handleRecords(stream, Collections.singletonList(record));
+                        } catch (Exception e) {
+                            failed.increment();
+                            log.error("处理pending订单异常, stream: {}, id: {}", stream, lastId, e);
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("读取pending-list异常, stream: {}", stream, e);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 认领各个stream中空闲超时的pending消息重新处理，投递次数超过上限的消息转入死信stream
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.stream.claim-interval:30000}")
+    public void claimPending() {
+        boolean retired = false;
+        for (String stream : streams) {
+            try {
+                retired |= claimPending(stream);
+            } catch (Exception e) {
+                log.error("认领pending消息失败, stream: {}", stream, e);
+            }
+        }
+        if (retired) {
+            refreshStreams();
+        }
+    }
+
+    /**
+     * @return stream已经移出登记集合时返回true
+     */
+    private boolean claimPending(String stream) {
+        //1.查询最早的一批pending消息 XPENDING stream.orders:{voucherId} g1 - + count
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(stream, ORDER_STREAM_GROUP, Range.unbounded(), count);
+        if (pending.isEmpty()) {
+            return retireIfDrained(stream);
+        }
+        List<RecordId> retryIds = new ArrayList<>();
+        List<RecordId> deadIds = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() < claimIdle) {
+                continue;
+            }
+            (message.getTotalDeliveryCount() >= maxDeliveries ? deadIds : retryIds).add(message.getId());
+        }
+        String claimer = consumerPrefix + "-claim";
+        //2.重新处理，XCLAIM只认领仍然空闲超时的消息，多个实例同时认领时只有一个成功
+        List<StringRecord> retry = claim(stream, claimer, retryIds);
+        if (!retry.isEmpty()) {
+            claimed.add(retry.size());
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>(retry.size());
+            for (StringRecord record : retry) {
+                records.add(MapRecord.<String, Object, Object>create(record.getStream(), new LinkedHashMap<>(record.getValue()))
+                        .withId(record.getId()));
+            }
+            try {
+                handleRecords(stream, records);
+            } catch (Exception e) {
+                failed.increment();
+                log.error("处理认领的订单异常, stream: {}, 数量: {}", stream, records.size(), e);
+            }
+        }
+        //3.转入死信stream并确认，死信中记录来源stream和消息id
+        List<StringRecord> dead = claim(stream, claimer, deadIds);
+        for (StringRecord record : dead) {
+            Map<String, String> values = new LinkedHashMap<>(record.getValue());
+            values.put("sourceStream", stream);
+            values.put("sourceId", record.getId().getValue());
+            stringRedisTemplate.opsForStream().add(ORDER_STREAM_DLQ_KEY, values);
+            stringRedisTemplate.opsForStream().acknowledge(stream, ORDER_STREAM_GROUP, record.getId());
+            deadLettered.increment();
+            log.error("订单超过最大投递次数，转入死信stream: {}", values);
+        }
+        return false;
+    }
+
+    /**
+     * 秒杀结束超过claim-idle（覆盖节点之间的时钟误差），并且消息全部投递、没有pending消息时，把stream移出登记集合
+     * 结束后秒杀脚本不再写入该stream
+     */
+    private boolean retireIfDrained(String stream) {
+        //1.秒杀已经结束
+        Long voucherId = voucherIdOf(stream);
+        if (voucherId == null) {
+            return false;
+        }
+        Long end = seckillStock.endOf(voucherId);
+        if (end != null && end + claimIdle > System.currentTimeMillis()) {
+            return false;
+        }
+        //2.消息全部投递给消费者组并且已经确认 XINFO STREAM、XINFO GROUPS
+        StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(stream);
+        boolean drained = stringRedisTemplate.opsForStream().groups(stream).stream()
+                .filter(group -> ORDER_STREAM_GROUP.equals(group.groupName()))
+                .allMatch(group -> group.pendingCount() == 0 && info.lastGeneratedId().equals(group.lastDeliveredId()));
+        if (!drained) {
+            return false;
+        }
+        //3.移出登记集合，stream保留一段时间后过期
+        stringRedisTemplate.opsForSet().remove(ORDER_STREAM_REGISTRY_KEY, stream);
+        stringRedisTemplate.expire(stream, RETIRED_STREAM_TTL_HOURS, TimeUnit.HOURS);
+        log.info("订单stream已消费完毕，移出登记集合, stream: {}", stream);
+        return true;
+    }
+
+    /**
+     * 从stream key中解析优惠券id：stream.orders:{voucherId}，分片时为stream.orders:{voucherId:shard}
+     */
+    private static Long voucherIdOf(String stream) {
+        if (!stream.startsWith(ORDER_STREAM_KEY)) {
+            return null;
+        }
+        String tag = stream.substring(ORDER_STREAM_KEY.length());
+        if (!tag.startsWith("{") || !tag.endsWith("}")) {
+            return null;
+        }
+        try {
+            return Long.valueOf(tag.substring(1, tag.length() - 1).split(":")[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private List<StringRecord> claim(String stream, String claimer, List<RecordId> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                .minIdleMs(claimIdle).ids(ids.toArray(new RecordId[0]));
+        List<StringRecord> records = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                ((StringRedisConnection) connection).xClaim(stream, ORDER_STREAM_GROUP, claimer, options));
+        return records == null ? Collections.emptyList() : records;
+    }
+
+    /**
+     * 批量创建订单，成功后确认整批消息
+     */
+    private void handleRecords(String stream, List<MapRecord<String, Object, Object>> list) {
+        //1.解析消息中的订单
+        List<VoucherOrder> orders = new ArrayList<>(list.size());
+        RecordId[] ids = new RecordId[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            MapRecord<String, Object, Object> record = list.get(i);
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            ids[i] = record.getId();
+        }
+        //2.批量创建订单，已经存在的订单会被过滤，重复投递不会重复下单
+        int n = voucherOrderService.createVoucherOrders(orders);
+        created.add(n);
+        //3.ACK确认 XACK stream.orders:{voucherId} g1 id...
+        stringRedisTemplate.opsForStream().acknowledge(stream, ORDER_STREAM_GROUP, ids);
+        acked.add(ids.length);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("consumers", consumers);
+        stats.put("streams", streams.size());
+        stats.put("created", created.sum());
+        stats.put("acked", acked.sum());
+        stats.put("failed", failed.sum());
+        stats.put("claimed", claimed.sum());
+        stats.put("deadLettered", deadLettered.sum());
+        long pending = 0;
+        for (String stream : streams) {
+            pending += stringRedisTemplate.opsForStream().pending(stream, ORDER_STREAM_GROUP).getTotalPendingMessages();
+        }
+        stats.put("pending", pending);
+        return stats;
+    }
+}
@@ -0,0 +1,28 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.CacheOutbox;
+import com.baomidou.mybatisplus.extension.service.IService;
+
+/**
+ * <p>
+ *  服务类
+ * </p>
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox> {
+
+    String TABLE_SHOP = "tb_shop";
+    String TABLE_BLOG = "tb_blog";
+    String TABLE_USER = "tb_user";
+
+    /**
+     * 记录一条数据变更，在当前事务提交后删除缓存，并由定时任务延迟再删除一次
+     * @param tableName 发生变更的表名
+     * @param rowId 发生变更的数据id
+     */
+    void record(String tableName, Long rowId);
+
+    /**
+     * 处理已到延迟时间的变更，按表分批删除缓存
+     */
+    void consume();
+}
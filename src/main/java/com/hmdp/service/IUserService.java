@@ -3,6 +3,7 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpServletRequest;
@@ -27,4 +28,11 @@ public interface IUserService extends IService<User> {
     Result sign();
 
     Result signCount();
+
+    /**
+     * 根据id查询用户的公开信息，优先读取缓存
+     * @param id 用户id
+     * @return 用户信息，不存在时返回null
+     */
+    UserDTO queryUserDTO(Long id);
 }
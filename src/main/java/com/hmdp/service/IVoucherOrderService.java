@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +19,16 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 按hmdp.order.transport把订单发送到rabbitmq或redis stream，由消费者异步创建
+     */
+    void enqueueVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建订单：内存中按用户和优惠券去重，每个优惠券一次扣减库存，批量写入订单
+     * @param voucherOrders 一批订单
+     * @return 实际创建的订单数量
+     */
+    int createVoucherOrders(List<VoucherOrder> voucherOrders);
 }
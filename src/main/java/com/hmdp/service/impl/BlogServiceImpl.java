@@ -9,26 +9,33 @@ import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRegion;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -51,6 +58,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheRegion blogRegion;
+
+    @Resource
+    private CacheRegion userRegion;
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -59,21 +78,19 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        });
+        // 批量查询用户和点赞状态
+        fillBlogs(records);
         return Result.ok(records);
     }
 
     @Override
     public Result queryBlogById(Long id) {
-        //1,查询blog
-        Blog blog = getById(id);
-        if(blog == null){
+        //1,查询blog，布隆过滤器会拦截不存在的id，缓存中的对象可能被共享，复制后再填充用户信息
+        Blog cached = cacheClient.query(blogRegion, id, Blog.class, this::getById);
+        if(cached == null){
             return Result.fail("博客不存在");
         }
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
         //2.查询blog有关的用户
         queryBlogUser(blog);
         //3.查询blog是否被点赞
@@ -95,6 +112,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     @Override
+    @Transactional
     public Result likeBlog(Long id) {
         //1.获取登录用户
         Long userId = UserHolder.getUser().getId();
@@ -105,8 +123,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //3.如果未点赞，可以点赞
             //3.1数据库点赞数 + 1
             boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            //3.2保存用户到redis的set集合
+            //3.2保存用户到redis的set集合，失效记录先写入，写入失败时整个事务回滚，不修改redis
             if(isSuccess){
+                cacheOutboxService.record(ICacheOutboxService.TABLE_BLOG, id);
                 stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
             }
         }else{
@@ -115,6 +134,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
             //4.2redis集合remove用户id
             if(isSuccess){
+                cacheOutboxService.record(ICacheOutboxService.TABLE_BLOG, id);
                 stringRedisTemplate.opsForZSet().remove(key,userId.toString());
             }
         }
@@ -142,6 +162,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     @Override
+    @Transactional
     public Result saveBlog(Blog blog) {
         // 1.获取登录用户
         UserDTO user = UserHolder.getUser();
@@ -151,6 +172,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if(!isSuccess){
             return Result.fail("新增笔记失败");
         }
+        cacheClient.addToBloomFilter(CACHE_BLOG_KEY, blog.getId());
+        cacheOutboxService.record(ICacheOutboxService.TABLE_BLOG, blog.getId());
         // 3.查询笔记作者的所有粉丝
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
         // 4.推送笔记id给所有粉丝
@@ -189,14 +212,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        //4.根据id查询blog
-        List<Blog> blogs = query().in("id", ids).last("order by field(id," + StrUtil.join(",", ids) + ")").list();
-        for (Blog blog : blogs) {
-            //4.2.查询blog有关的用户
-            queryBlogUser(blog);
-            //4.3.查询blog是否被点赞
-            isBlogLiked(blog);
-        }
+        //4.根据id批量查询blog，缓存中的对象可能被共享，复制后再填充用户信息
+        Map<Long, Blog> blogMap = cacheClient.queryBatch(blogRegion, ids, Blog.class, this::listByIds, Blog::getId);
+        List<Blog> blogs = blogMap.values().stream()
+                .map(blog -> BeanUtil.copyProperties(blog, Blog.class))
+                .collect(Collectors.toList());
+        //4.2.批量查询blog有关的用户和点赞状态
+        fillBlogs(blogs);
         //5.封装并返回
         ScrollResult scrollResult = new ScrollResult();
         scrollResult.setList(blogs);
@@ -205,9 +227,52 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(scrollResult);
     }
 
+    /**
+     * 批量查询博客的作者和当前用户的点赞状态
+     */
+    private void fillBlogs(List<Blog> blogs) {
+        if(blogs.isEmpty()){
+            return;
+        }
+        //1.批量查询作者
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = cacheClient.queryBatch(
+                userRegion, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toList()),
+                UserDTO::getId);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if(user != null){
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+        //2.通过pipeline批量查询当前用户是否点赞
+        UserDTO user = UserHolder.getUser();
+        if(user == null){
+            return;
+        }
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                conn.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
     private void queryBlogUser(Blog blog) {
         Long userId = blog.getUserId();
-        User user = userService.getById(userId);
+        UserDTO user = userService.queryUserDTO(userId);
+        if(user == null){
+            return;
+        }
         blog.setName(user.getNickName());
         blog.setIcon(user.getIcon());
     }
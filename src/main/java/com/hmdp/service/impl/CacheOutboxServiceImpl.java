@@ -0,0 +1,124 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRegion;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * 缓存失效的本地消息表：
+ * 1.业务数据变更时在同一事务中写入一条变更记录
+ * 2.事务提交后立即删除缓存
+ * 3.定时任务在延迟时间后按表分批再删除一次，覆盖提交前被并发读请求写回的旧数据，
+ *   进程在提交后、删除前宕机时也能保证缓存最终被删除
+ * </p>
+ */
+@Slf4j
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheRegion shopRegion;
+
+    @Resource
+    private CacheRegion blogRegion;
+
+    @Resource
+    private CacheRegion userRegion;
+
+    /**
+     * 第二次删除的延迟时间（毫秒）
+     */
+    @Value("${hmdp.cache.outbox.delay:1000}")
+    private long delay;
+
+    /**
+     * 每次处理的变更数量
+     */
+    @Value("${hmdp.cache.outbox.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * 表名 -> 缓存区域
+     */
+    private final Map<String, CacheRegion> tableRegions = new HashMap<>();
+
+    @PostConstruct
+    private void init() {
+        tableRegions.put(TABLE_SHOP, shopRegion);
+        tableRegions.put(TABLE_BLOG, blogRegion);
+        tableRegions.put(TABLE_USER, userRegion);
+    }
+
+    @Override
+    public void record(String tableName, Long rowId) {
+        CacheRegion region = tableRegions.get(tableName);
+        if (region == null) {
+            throw new IllegalArgumentException("未配置缓存区域的表: " + tableName);
+        }
+        //1.写入变更记录，与业务数据在同一事务中提交
+        save(new CacheOutbox().setTableName(tableName).setRowId(rowId).setCreateTime(LocalDateTime.now()));
+        //2.事务提交后删除缓存，没有事务时直接删除
+        String key = region.key(rowId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    cacheClient.invalidate(key);
+                }
+            });
+        } else {
+            cacheClient.invalidate(key);
+        }
+    }
+
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.cache.outbox.poll-interval:500}")
+    public void consume() {
+        //1.查询已到延迟时间的变更
+        List<CacheOutbox> changes = query()
+                .le("create_time", LocalDateTime.now().minusNanos(delay * 1_000_000))
+                .orderByAsc("id")
+                .last("limit " + batchSize)
+                .list();
+        if (changes.isEmpty()) {
+            return;
+        }
+        //2.按表分组，每张表一次批量删除
+        Map<String, List<String>> keysByTable = new HashMap<>();
+        List<Long> ids = new ArrayList<>(changes.size());
+        for (CacheOutbox change : changes) {
+            ids.add(change.getId());
+            CacheRegion region = tableRegions.get(change.getTableName());
+            if (region == null) {
+                log.warn("未配置缓存区域的表: {}", change.getTableName());
+                continue;
+            }
+            keysByTable.computeIfAbsent(change.getTableName(), table -> new ArrayList<>())
+                    .add(region.key(change.getRowId()));
+        }
+        keysByTable.values().forEach(cacheClient::invalidateAll);
+        //3.删除已处理的变更记录
+        removeByIds(ids);
+    }
+}
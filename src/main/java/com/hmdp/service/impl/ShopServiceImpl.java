@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -8,9 +9,11 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRegion;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
@@ -49,15 +52,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private CacheRegion shopRegion;
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
     @Override
     public Result queryById(Long id) {
         //缓存穿透
         /*Shop shop = cacheClient.queryWithPassThrough
                 (CACHE_SHOP_KEY,id,Shop.class,id2 -> getById(id2),CACHE_SHOP_TTL, TimeUnit.MINUTES);*/
 
-        //互斥锁解决缓存击穿
-        Shop shop = cacheClient.queryWithMutex(
-                CACHE_SHOP_KEY,id, Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        //按店铺缓存区域配置的策略查询，默认互斥锁解决缓存击穿
+        Shop shop = cacheClient.query(shopRegion, id, Shop.class, this::getById);
 
         //逻辑过期解决缓存击穿
         /*Shop shop = cacheClient.queryWithLogicalExpire
@@ -222,6 +230,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }*/
 
 
+    @Override
+    @Transactional
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.加入布隆过滤器
+        cacheClient.addToBloomFilter(CACHE_SHOP_KEY, shop.getId());
+        //3.清除可能存在的空值缓存
+        cacheOutboxService.record(ICacheOutboxService.TABLE_SHOP, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -231,8 +251,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //2.记录变更，事务提交后删除缓存并通知所有节点清除本地缓存，延迟后再删除一次
+        cacheOutboxService.record(ICacheOutboxService.TABLE_SHOP, id);
         return Result.ok();
     }
 
@@ -277,12 +297,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr,distance);
         });
-        //5.根据id查询shop
-        List<Shop> shops = query()
-                .in("id", ids)
-                .last("order by field(id," + StrUtil.join(",", ids) + ")").list();
-        for (Shop shop : shops) {
+        //5.根据id批量查询shop，缓存中的对象可能被共享，复制后再设置距离
+        Map<Long, Shop> shopMap = cacheClient.queryBatch(shopRegion, ids, Shop.class, this::listByIds, Shop::getId);
+        List<Shop> shops = new ArrayList<>(shopMap.size());
+        for (Shop cached : shopMap.values()) {
+            Shop shop = BeanUtil.copyProperties(cached, Shop.class);
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(shop);
         }
         //6.返回
         return Result.ok(shops);
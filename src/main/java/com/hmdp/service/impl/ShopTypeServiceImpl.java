@@ -1,13 +1,14 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.collection.CollectionUtil;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
@@ -30,15 +31,21 @@ import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_TTL;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private RedisTemplate<String, byte[]> byteRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result queryTypeList() {
         String key = CACHE_SHOP_TYPE_KEY;
-        List<String> shopTypeJson = stringRedisTemplate.opsForList().range(key, 0, -1);
-        if(CollectionUtil.isNotEmpty(shopTypeJson)){
-            //存在，JSON字符串转对象返回
-            List<ShopType> shopTypeList = JSONUtil.toList(shopTypeJson.toString(), ShopType.class);
+        CacheCodec<ShopType> codec = cacheClient.codecOf(ShopType.class);
+        List<byte[]> shopTypeBytes = byteRedisTemplate.opsForList().range(key, 0, -1);
+        if(CollectionUtil.isNotEmpty(shopTypeBytes)){
+            //存在，反序列化后返回
+            List<ShopType> shopTypeList = shopTypeBytes.stream()
+                    .map(codec::decode)
+                    .collect(Collectors.toList());
             CollectionUtil.sort(shopTypeList, (o1, o2) -> o1.getSort() - o2.getSort());
             return Result.ok(shopTypeList);
         }
@@ -47,11 +54,11 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
         if(CollectionUtil.isEmpty(typeList)){
             return Result.fail("店铺类型不存在");
         }
-        List<String> shopTypesJson = typeList.stream()
-                .map(shopType -> JSONUtil.toJsonStr(shopType))
+        List<byte[]> shopTypesBytes = typeList.stream()
+                .map(codec::encode)
                 .collect(Collectors.toList());
-        stringRedisTemplate.opsForList().rightPushAll(key,shopTypesJson);
-        stringRedisTemplate.expire(key,CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
+        byteRedisTemplate.opsForList().rightPushAll(key,shopTypesBytes);
+        byteRedisTemplate.expire(key,CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
         //返回
         return Result.ok(typeList);
     }
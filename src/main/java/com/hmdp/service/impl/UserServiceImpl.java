@@ -10,7 +10,10 @@ import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRegion;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -18,6 +21,7 @@ import org.springframework.data.redis.connection.BitFieldSubCommands;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
@@ -49,6 +53,15 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheRegion userRegion;
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //1.校验手机号
@@ -66,7 +79,11 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok();
     }
 
+    /**
+     * createUserWithPhone由本类调用，代理不生效，事务加在login上，新用户和缓存失效记录在同一事务中提交
+     */
     @Override
+    @Transactional
     public Result login(LoginFormDTO loginForm, HttpSession session) {
         String phone = loginForm.getPhone();
         //1.校验手机号
@@ -178,7 +195,16 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         save(user);
+        //清除可能存在的空值缓存
+        cacheOutboxService.record(ICacheOutboxService.TABLE_USER, user.getId());
         return user;
     }
 
+    @Override
+    public UserDTO queryUserDTO(Long id) {
+        return cacheClient.query(userRegion, id, UserDTO.class, userId -> {
+            User user = getById(userId);
+            return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+        });
+    }
 }
@@ -8,9 +8,14 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderFallbackQueue;
+import com.hmdp.utils.OrderPublisher;
+import com.hmdp.utils.OrderStatusRegistry;
 import com.hmdp.utils.RabbitMQConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStock;
 import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
@@ -18,20 +23,27 @@ import org.redisson.api.RedissonClient;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RabbitMQConstants.ORDER_TRANSPORT_STREAM;
 
 /**
  * <p>
@@ -60,12 +72,26 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RabbitTemplate rabbitTemplate;
 
-    public static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private OrderStatusRegistry orderStatusRegistry;
+
+    @Resource
+    private OrderFallbackQueue orderFallbackQueue;
+
+    @Resource
+    private OrderPublisher orderPublisher;
+
+    /**
+     * 订单的传递方式：rabbitmq或stream（redis stream，在秒杀脚本中写入）
+     */
+    @Value("${hmdp.order.transport:rabbitmq}")
+    private String orderTransport;
 
     /*private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
 
@@ -117,23 +143,41 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //0.本地已标记售罄，直接返回，不再访问redis
+        if(soldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString()
-        );
+        //获取订单id
+        long orderId = redisIdWorker.nextId("order");
+        boolean useStream = ORDER_TRANSPORT_STREAM.equals(orderTransport);
+        //1.执行lua脚本，校验时间窗口、一人一单和库存，库存分片的秒杀券按分片扣减
+        //  使用redis stream时脚本同时把订单写入该秒杀券的订单stream
+        int r = seckillStock.seckill(voucherId, userId, useStream ? orderId : null);
         //2.判断结果是否为0
-        int r = result.intValue();
-        if(r != 0){
-            //2.1.不为0，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        if(r != SeckillStock.SUCCESS){
+            //2.1.不为0，代表没有购买资格，库存不足时标记售罄并通知所有节点
+            switch (r) {
+                case SeckillStock.NO_STOCK:
+                    soldOutRegistry.markSoldOut(voucherId);
+                    return Result.fail("库存不足");
+                case SeckillStock.DUPLICATE:
+                    return Result.fail("不能重复下单");
+                case SeckillStock.NOT_STARTED:
+                    return Result.fail("秒杀尚未开始");
+                case SeckillStock.ENDED:
+                    return Result.fail("秒杀已经结束");
+                default:
+                    return Result.fail("秒杀券不存在");
+            }
+        }
+        //2.2.为0，有购买资格，记录订单状态为处理中
+        orderStatusRegistry.markPending(orderId, userId, voucherId);
+        //2.3.使用redis stream时订单已经在脚本中写入
+        if(useStream){
+            return Result.ok(orderId);
         }
-        //2.2.为0，有购买资格，把下单信息保存到阻塞队列
-        long orderId = redisIdWorker.nextId("order");
-
         VoucherOrder order = new VoucherOrder();
         order.setId(orderId);
         order.setVoucherId(voucherId);
@@ -141,14 +185,29 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         /*//2.3创建代理
         proxy = (IVoucherOrderService) AopContext.currentProxy();*/
         //2.4保存消息队列
-        rabbitTemplate.convertAndSend(
-                RabbitMQConstants.ORDER_EXCHANGE,
-                RabbitMQConstants.ORDER_ROUTING_KEY,
-                order);
+        enqueueVoucherOrder(order);
         //3.返回订单id
         return Result.ok(orderId);
     }
 
+    @Override
+    public void enqueueVoucherOrder(VoucherOrder voucherOrder) {
+        if (ORDER_TRANSPORT_STREAM.equals(orderTransport)) {
+            Map<String, String> values = new HashMap<>(4);
+            values.put("userId", voucherOrder.getUserId().toString());
+            values.put("voucherId", voucherOrder.getVoucherId().toString());
+            values.put("id", voucherOrder.getId().toString());
+            String streamKey = SeckillStock.streamKey(voucherOrder.getVoucherId());
+            stringRedisTemplate.opsForStream().add(streamKey, values);
+            seckillStock.registerStream(streamKey);
+            return;
+        }
+        //broker不可用时写入本地队列；否则放入发送窗口后立即返回，短暂等待后窗口仍然已满时同样写入本地队列，但不标记broker不可用
+        if (!orderFallbackQueue.isBrokerAvailable() || !orderPublisher.publish(voucherOrder)) {
+            orderFallbackQueue.offer(voucherOrder);
+        }
+    }
+
   /*  @Override
     public Result seckillVoucher(Long voucherId) {
         //1.查询优惠券
@@ -191,32 +250,134 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
 
+    /**
+     * 先插入订单再扣减库存：唯一索引uk_user_voucher保证一人一单，同一用户的并发订单在索引上排队，
+     * 不需要分布式锁和COUNT查询；热点的库存行最后更新，行锁持有的时间最短
+     */
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        //5.一人一单
-        Long userId = voucherOrder.getUserId();
-        //订单id
-        Long voucherId = voucherOrder.getVoucherId();
-        //5.1查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        //5.2判断是否存在
-        if(count > 0){
-            //用户已经购买过
+        //5.一人一单，插入订单，重复时影响行数为0
+        if (baseMapper.insertIgnore(voucherOrder) == 0) {
+            //5.1同一订单重复投递时仍然是创建成功，不同订单说明用户已经购买过
+            if (getById(voucherOrder.getId()) != null) {
+                orderStatusRegistry.markCreated(Collections.singletonList(voucherOrder));
+                return;
+            }
             log.error("用户已经购买过");
+            orderStatusRegistry.markFailed(Collections.singletonList(voucherOrder), "不能重复下单");
             return;
         }
         //6.扣减库存
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1")
-                .eq("voucher_id", voucherId)
+                .eq("voucher_id", voucherOrder.getVoucherId())
                 .gt("stock",0)
                 .update();
         if(!success){
-            //扣减失败
+            //扣减失败，删除刚插入的订单
             log.error("库存不足");
+            removeById(voucherOrder.getId());
+            orderStatusRegistry.markFailed(Collections.singletonList(voucherOrder), "库存不足");
             return;
         }
-        //7.创建订单
-        save(voucherOrder);
+        orderStatusRegistry.markCreated(Collections.singletonList(voucherOrder));
+    }
+
+    @Override
+    @Transactional
+    public int createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return 0;
+        }
+        //1.内存中按用户和优惠券去重，同一用户同一优惠券只保留第一条
+        Map<String, VoucherOrder> distinct = new LinkedHashMap<>(voucherOrders.size());
+        List<VoucherOrder> duplicated = new ArrayList<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            VoucherOrder first = distinct.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+            if (first != null && !first.getId().equals(voucherOrder.getId())) {
+                duplicated.add(voucherOrder);
+            }
+        }
+        orderStatusRegistry.markFailed(duplicated, "不能重复下单");
+        //2.按优惠券分组，每组先批量插入订单，再按实际插入的数量扣减库存
+        Map<Long, List<VoucherOrder>> ordersByVoucher = distinct.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        int created = 0;
+        for (Map.Entry<Long, List<VoucherOrder>> group : ordersByVoucher.entrySet()) {
+            created += createVoucherOrders(group.getKey(), group.getValue());
+        }
+        return created;
+    }
+
+    /**
+     * 创建同一优惠券的一组订单，组内用户不重复
+     * @return 实际创建的订单数量
+     */
+    private int createVoucherOrders(Long voucherId, List<VoucherOrder> orders) {
+        //1.批量插入，已经存在的订单（重复投递或者用户已经购买过）被唯一索引忽略
+        int inserted = baseMapper.insertIgnoreBatch(orders);
+        List<VoucherOrder> fresh = orders;
+        if (inserted < orders.size()) {
+            //1.1有订单被忽略，一次查询区分：订单id相同是重复投递，仍然是创建成功；不同说明用户已经购买过
+            Map<Long, Long> existing = new HashMap<>(orders.size());
+            for (VoucherOrder order : query().select("id", "user_id").eq("voucher_id", voucherId)
+                    .in("user_id", orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toList())).list()) {
+                existing.put(order.getUserId(), order.getId());
+            }
+            List<VoucherOrder> created = new ArrayList<>(orders.size());
+            List<VoucherOrder> duplicated = new ArrayList<>();
+            for (VoucherOrder order : orders) {
+                (order.getId().equals(existing.get(order.getUserId())) ? created : duplicated).add(order);
+            }
+            orderStatusRegistry.markFailed(duplicated, "不能重复下单");
+            if (created.size() == inserted) {
+                //没有重复投递，剩下的都是刚插入的
+                fresh = created;
+            } else {
+                //无法区分哪些是刚插入的，只扣减库存；库存不足时抛出异常回滚，由消费者逐条重试
+                orderStatusRegistry.markCreated(created);
+                if (deductStock(voucherId, inserted) < inserted) {
+                    throw new IllegalStateException("库存不足且存在重复投递的订单, voucherId: " + voucherId);
+                }
+                return inserted;
+            }
+        }
+        if (fresh.isEmpty()) {
+            return 0;
+        }
+        //2.按插入的数量扣减库存，库存不足时删除多出来的订单
+        int count = deductStock(voucherId, fresh.size());
+        if (count < fresh.size()) {
+            log.error("库存不足, voucherId: {}, 需要: {}, 实际扣减: {}", voucherId, fresh.size(), count);
+            List<VoucherOrder> noStock = fresh.subList(count, fresh.size());
+            removeByIds(noStock.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+            orderStatusRegistry.markFailed(noStock, "库存不足");
+        }
+        orderStatusRegistry.markCreated(fresh.subList(0, count));
+        return count;
+    }
+
+    /**
+     * 扣减库存，库存不足时按剩余库存扣减
+     * @return 实际扣减的数量
+     */
+    private int deductStock(Long voucherId, int count) {
+        while (count > 0) {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count)
+                    .update();
+            if (success) {
+                return count;
+            }
+            //库存不足，按剩余库存重试
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            if (voucher == null) {
+                return 0;
+            }
+            count = Math.min(count - 1, voucher.getStock());
+        }
+        return 0;
     }
 }
@@ -7,16 +7,19 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRegion;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SoldOutRegistry;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
+import java.util.Collections;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_TTL;
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_KEY;
 
 /**
  * <p>
@@ -35,12 +38,33 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheRegion voucherRegion;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStock seckillStock;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 查询优惠券信息，店铺没有优惠券时缓存空数组
+        Voucher[] vouchers = cacheClient.query(voucherRegion, shopId, Voucher[].class,
+                id -> getBaseMapper().queryVoucherOfShop(id).toArray(new Voucher[0]));
         // 返回结果
-        return Result.ok(vouchers);
+        return Result.ok(vouchers == null ? Collections.emptyList() : Arrays.asList(vouchers));
+    }
+
+    @Override
+    public void addVoucher(Voucher voucher) {
+        // 保存优惠券
+        save(voucher);
+        // 清除店铺优惠券列表的缓存
+        cacheClient.invalidate(CACHE_VOUCHER_KEY + voucher.getShopId());
     }
 
     @Override
@@ -55,7 +79,29 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀库存到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString(),SECKILL_STOCK_TTL, TimeUnit.SECONDS);
+        //保存秒杀券的库存和时间窗口到redis中，开启分片时把库存拆分到多个key
+        seckillStock.init(voucher.getId(), voucher.getStock(), voucher.getBeginTime(), voucher.getEndTime());
+        //清除店铺优惠券列表的缓存
+        cacheClient.invalidate(CACHE_VOUCHER_KEY + voucher.getShopId());
+    }
+
+    @Override
+    public Result replenishSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充数量必须大于0");
+        }
+        // 增加数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 增加redis库存，分片时平均增加到各个分片
+        seckillStock.addStock(voucherId, count);
+        // 清除所有节点的售罄标记
+        soldOutRegistry.reset(voucherId);
+        return Result.ok();
     }
 }
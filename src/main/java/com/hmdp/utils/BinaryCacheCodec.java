@@ -0,0 +1,247 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 按字段顺序编码的紧凑二进制格式
+ * 格式：魔数(1字节) + 非空字段位图(varint) + 各非空字段的值
+ * 新增字段只能追加在末尾，旧数据中缺少的字段解码为null，新数据中多出的字段会被忽略
+ * 不以魔数开头的数据按JSON解码，兼容升级前写入的缓存
+ */
+public class BinaryCacheCodec<T> implements CacheCodec<T> {
+
+    public static final byte MAGIC = (byte) 0xB1;
+
+    private final Class<T> type;
+    private final Supplier<T> factory;
+    private final List<FieldCodec<T>> fields;
+    private final JsonCacheCodec<T> jsonCodec;
+
+    private BinaryCacheCodec(Class<T> type, Supplier<T> factory, List<FieldCodec<T>> fields) {
+        this.type = type;
+        this.factory = factory;
+        this.fields = fields;
+        this.jsonCodec = new JsonCacheCodec<>(type);
+    }
+
+    public static <T> Builder<T> builder(Class<T> type, Supplier<T> factory) {
+        return new Builder<>(type, factory);
+    }
+
+    @Override
+    public Class<T> type() {
+        return type;
+    }
+
+    @Override
+    public byte[] encode(T value) {
+        long presence = 0;
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).isPresent(value)) {
+                presence |= 1L << i;
+            }
+        }
+        Output out = new Output();
+        out.writeByte(MAGIC);
+        out.writeVarLong(presence);
+        for (int i = 0; i < fields.size(); i++) {
+            if ((presence & (1L << i)) != 0) {
+                fields.get(i).write(out, value);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public T decode(byte[] bytes) {
+        if (bytes[0] != MAGIC) {
+            return jsonCodec.decode(bytes);
+        }
+        Input in = new Input(bytes, 1);
+        long presence = in.readVarLong();
+        T value = factory.get();
+        for (int i = 0; i < fields.size(); i++) {
+            if ((presence & (1L << i)) != 0) {
+                fields.get(i).read(in, value);
+            }
+        }
+        return value;
+    }
+
+    public static class Builder<T> {
+
+        private final Class<T> type;
+        private final Supplier<T> factory;
+        private final List<FieldCodec<T>> fields = new ArrayList<>();
+
+        private Builder(Class<T> type, Supplier<T> factory) {
+            this.type = type;
+            this.factory = factory;
+        }
+
+        public Builder<T> longField(Function<T, Long> getter, BiConsumer<T, Long> setter) {
+            return field(getter, (out, v) -> out.writeVarLong(zigZag(v)), in -> unZigZag(in.readVarLong()), setter);
+        }
+
+        public Builder<T> intField(Function<T, Integer> getter, BiConsumer<T, Integer> setter) {
+            return field(getter, (out, v) -> out.writeVarLong(zigZag(v)), in -> (int) unZigZag(in.readVarLong()), setter);
+        }
+
+        public Builder<T> doubleField(Function<T, Double> getter, BiConsumer<T, Double> setter) {
+            return field(getter, (out, v) -> out.writeFixedLong(Double.doubleToRawLongBits(v)),
+                    in -> Double.longBitsToDouble(in.readFixedLong()), setter);
+        }
+
+        public Builder<T> booleanField(Function<T, Boolean> getter, BiConsumer<T, Boolean> setter) {
+            return field(getter, (out, v) -> out.writeByte((byte) (v ? 1 : 0)), in -> in.readByte() != 0, setter);
+        }
+
+        public Builder<T> stringField(Function<T, String> getter, BiConsumer<T, String> setter) {
+            return field(getter, Output::writeString, Input::readString, setter);
+        }
+
+        public Builder<T> dateTimeField(Function<T, LocalDateTime> getter, BiConsumer<T, LocalDateTime> setter) {
+            return field(getter, (out, v) -> {
+                out.writeVarLong(zigZag(v.toEpochSecond(ZoneOffset.UTC)));
+                out.writeVarLong(v.getNano());
+            }, in -> LocalDateTime.ofEpochSecond(unZigZag(in.readVarLong()), (int) in.readVarLong(), ZoneOffset.UTC), setter);
+        }
+
+        private <V> Builder<T> field(Function<T, V> getter, BiConsumer<Output, V> writer,
+                                     Function<Input, V> reader, BiConsumer<T, V> setter) {
+            if (fields.size() >= Long.SIZE) {
+                throw new IllegalStateException("字段数量不能超过" + Long.SIZE);
+            }
+            fields.add(new FieldCodec<T>() {
+                @Override
+                public boolean isPresent(T value) {
+                    return getter.apply(value) != null;
+                }
+
+                @Override
+                public void write(Output out, T value) {
+                    writer.accept(out, getter.apply(value));
+                }
+
+                @Override
+                public void read(Input in, T value) {
+                    setter.accept(value, reader.apply(in));
+                }
+            });
+            return this;
+        }
+
+        public BinaryCacheCodec<T> build() {
+            return new BinaryCacheCodec<>(type, factory, new ArrayList<>(fields));
+        }
+    }
+
+    private interface FieldCodec<T> {
+        boolean isPresent(T value);
+
+        void write(Output out, T value);
+
+        void read(Input in, T value);
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static final class Output {
+        private byte[] buf = new byte[128];
+        private int pos;
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+
+        void writeByte(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeFixedLong(long v) {
+            ensure(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                buf[pos++] = (byte) (v >>> i);
+            }
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static final class Input {
+        private final byte[] buf;
+        private int pos;
+
+        Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("varint格式错误");
+        }
+
+        long readFixedLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        String readString() {
+            int len = (int) readVarLong();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}
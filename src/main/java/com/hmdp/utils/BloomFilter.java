@@ -0,0 +1,135 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内布隆过滤器，用于在访问redis和数据库之前拦截一定不存在的id
+ * 判断不存在则一定不存在，判断存在则有一定误判率
+ */
+public class BloomFilter {
+
+    /**
+     * 预计插入的元素数量
+     */
+    private final long expectedInsertions;
+
+    /**
+     * 期望误判率
+     */
+    private final double fpp;
+
+    /**
+     * 位数组
+     */
+    private final AtomicLongArray bits;
+
+    private final long bitSize;
+
+    /**
+     * 哈希函数个数
+     */
+    private final int numHashFunctions;
+
+    /**
+     * 实际插入的元素数量（近似值，重复插入也会计数）
+     */
+    private final LongAdder insertions = new LongAdder();
+
+    /**
+     * 是否已经完成初始化，未完成前不能用来拦截请求
+     */
+    private volatile boolean ready;
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0) {
+            throw new IllegalArgumentException("expectedInsertions必须大于0");
+        }
+        if (fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("fpp必须在0到1之间");
+        }
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+        //m = -n*ln(p)/(ln2)^2
+        long m = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.max(1, (m + 63) >>> 6);
+        this.bits = new AtomicLongArray(words);
+        this.bitSize = (long) words << 6;
+        //k = m/n*ln2
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) m / expectedInsertions * Math.log(2)));
+    }
+
+    public void put(Object value) {
+        long[] hash = MurmurHash.hash128(value.toString());
+        long combined = hash[0];
+        for (int i = 0; i < numHashFunctions; i++) {
+            setBit((combined & Long.MAX_VALUE) % bitSize);
+            combined += hash[1];
+        }
+        insertions.increment();
+    }
+
+    public boolean mightContain(Object value) {
+        long[] hash = MurmurHash.hash128(value.toString());
+        long combined = hash[0];
+        for (int i = 0; i < numHashFunctions; i++) {
+            if (!getBit((combined & Long.MAX_VALUE) % bitSize)) {
+                return false;
+            }
+            combined += hash[1];
+        }
+        return true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * 根据当前置位比例估算的实际误判率
+     */
+    public double currentFpp() {
+        long bitCount = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            bitCount += Long.bitCount(bits.get(i));
+        }
+        return Math.pow((double) bitCount / bitSize, numHashFunctions);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", ready);
+        stats.put("expectedInsertions", expectedInsertions);
+        stats.put("insertions", insertions.sum());
+        stats.put("fpp", fpp);
+        stats.put("currentFpp", currentFpp());
+        stats.put("bitSize", bitSize);
+        stats.put("hashFunctions", numHashFunctions);
+        stats.put("memoryBytes", (long) bits.length() * Long.BYTES);
+        return stats;
+    }
+
+    private void setBit(long index) {
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+        long old;
+        do {
+            old = bits.get(word);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(word, old, old | mask));
+    }
+
+    private boolean getBit(long index) {
+        return (bits.get((int) (index >>> 6)) & (1L << index)) != 0;
+    }
+}
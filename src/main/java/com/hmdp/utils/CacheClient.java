@@ -1,19 +1,44 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.thread.NamedThreadFactory;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
+import javax.annotation.PreDestroy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -23,160 +48,885 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 缓存值统一以字节数组读写，由CacheCodec负责序列化
+     */
+    private final RedisTemplate<String, byte[]> byteRedisTemplate;
+
+    /**
+     * 各类型注册的编码，未注册的类型使用JSON
+     */
+    private final Map<Class<?>, CacheCodec<?>> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * 逻辑过期数据的格式：魔数(1字节) + 过期时间戳毫秒(8字节) + 重建耗时毫秒(4字节) + 数据
+     * 旧格式LOGICAL_EXPIRE_MAGIC_V1没有重建耗时
+     */
+    private static final byte LOGICAL_EXPIRE_MAGIC_V1 = (byte) 0xB2;
+    private static final byte LOGICAL_EXPIRE_MAGIC = (byte) 0xB3;
+
+    private static final byte[] NULL_VALUE = new byte[0];
+
+    /**
+     * 本地一级缓存（L1），容量有限，按LRU淘汰，每个条目有独立的过期时间
+     */
+    private final LRUCache<String, Object> localCache;
+
+    /**
+     * 本地缓存条目的最长存活时间（毫秒）
+     */
+    private final long localTtl;
+
+    /**
+     * redis二级缓存（L2）的命中/未命中次数
+     */
+    private final LongAdder redisHitCount = new LongAdder();
+    private final LongAdder redisMissCount = new LongAdder();
+
+    /**
+     * 各个key前缀对应的布隆过滤器，以及被拦截的请求次数
+     */
+    private final Map<String, BloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    private final LongAdder bloomRejectCount = new LongAdder();
+
+    /**
+     * 缓存重建的请求合并
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 互斥锁获取失败后，重新查询redis的间隔（毫秒）
+     */
+    private static final long MUTEX_RETRY_INTERVAL = 50;
+
+    /**
+     * 缓存重建线程池，有界队列，队列满时拒绝
+     */
+    private final ThreadPoolExecutor cacheRebuildExecutor;
+
+    /**
+     * 本节点正在重建的key，避免重复争抢redis锁
+     */
+    private final Map<String, Boolean> rebuildingKeys = new ConcurrentHashMap<>();
+
+    /**
+     * 提前刷新的系数，越大越提前
+     */
+    private final double refreshBeta;
+
+    private final LongAdder rebuildSubmittedCount = new LongAdder();
+    private final LongAdder rebuildRejectedCount = new LongAdder();
+    private final LongAdder rebuildCompletedCount = new LongAdder();
+    private final LongAdder rebuildFailedCount = new LongAdder();
+    private final LongAdder rebuildCostTotal = new LongAdder();
+
+    /**
+     * 热点key探测，以及热点key在本地的常驻副本
+     * 常驻副本不会被LRU淘汰，由后台线程按固定间隔从redis刷新
+     */
+    private final HotKeyDetector hotKeyDetector;
+    private final Map<String, PinnedEntry> pinnedEntries = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService hotKeyRefresher;
+
+    /**
+     * key前缀 -> 缓存区域
+     */
+    private final Map<String, CacheRegion> regions = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisTemplate<String, byte[]> byteRedisTemplate,
+                       List<CacheCodec<?>> cacheCodecs,
+                       List<CacheRegion> cacheRegions,
+                       @Value("${hmdp.cache.local.capacity:10000}") int localCapacity,
+                       @Value("${hmdp.cache.local.ttl:60}") long localTtlSeconds,
+                       @Value("${hmdp.cache.rebuild.threads:10}") int rebuildThreads,
+                       @Value("${hmdp.cache.rebuild.queue-capacity:100}") int rebuildQueueCapacity,
+                       @Value("${hmdp.cache.refresh.beta:1.0}") double refreshBeta,
+                       @Value("${hmdp.cache.hot-key.window:10}") int hotKeyWindow,
+                       @Value("${hmdp.cache.hot-key.threshold:200}") long hotKeyThreshold,
+                       @Value("${hmdp.cache.hot-key.top-k:100}") int hotKeyTopK,
+                       @Value("${hmdp.cache.hot-key.refresh-interval:1000}") long hotKeyRefreshInterval) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.byteRedisTemplate = byteRedisTemplate;
+        for (CacheCodec<?> codec : cacheCodecs) {
+            codecs.put(codec.type(), codec);
+        }
+        for (CacheRegion region : cacheRegions) {
+            registerRegion(region);
+        }
+        this.localTtl = TimeUnit.SECONDS.toMillis(localTtlSeconds);
+        this.localCache = CacheUtil.newLRUCache(localCapacity, this.localTtl);
+        this.cacheRebuildExecutor = new ThreadPoolExecutor(rebuildThreads, rebuildThreads,
+                60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(rebuildQueueCapacity),
+                new NamedThreadFactory("cache-rebuild-", true));
+        this.refreshBeta = refreshBeta;
+        this.hotKeyDetector = new HotKeyDetector(hotKeyWindow, 1024, hotKeyThreshold, hotKeyTopK);
+        this.hotKeyRefresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("hot-key-refresh-", true));
+        this.hotKeyRefresher.scheduleWithFixedDelay(
+                this::refreshPinned, hotKeyRefreshInterval, hotKeyRefreshInterval, TimeUnit.MILLISECONDS);
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        byteRedisTemplate.opsForValue().set(key, encode(value),time,unit);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setWithLogicalExpire(key, value, time, unit, 0);
+    }
+
+    /**
+     * 设置逻辑过期，同时记录本次重建的耗时，用于提前刷新的概率计算
+     * @param rebuildCost 重建耗时（毫秒）
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, int rebuildCost){
+        //设置逻辑过期，写入redis
+        byteRedisTemplate.opsForValue().set(key, encodeLogicalExpire(value, unit.toMillis(time), rebuildCost));
+    }
+
+    /**
+     * 通过pipeline批量写入缓存，用于缓存预热
+     * 逻辑过期策略的区域写入逻辑过期格式，不设置redis过期时间
+     * @param region 缓存区域
+     * @param values 数据
+     * @param idGetter 从数据中获取id
+     */
+    public <R> void putAll(CacheRegion region, Collection<R> values, Function<R,?> idGetter){
+        if(values.isEmpty()){
+            return;
+        }
+        boolean logicalExpire = region.getStrategy() == CacheRegion.Strategy.LOGICAL_EXPIRE
+                || region.getStrategy() == CacheRegion.Strategy.EARLY_REFRESH;
+        Map<String, byte[]> toCache = new HashMap<>(values.size());
+        for (R r : values) {
+            String key = region.key(idGetter.apply(r));
+            toCache.put(key, logicalExpire ? encodeLogicalExpire(r, region.randomTtlMillis(), 0) : encode(r));
+            localCache.remove(key);
+        }
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            toCache.forEach((key, value) -> connection.stringCommands().set(
+                    key.getBytes(StandardCharsets.UTF_8), value,
+                    logicalExpire ? Expiration.persistent() : Expiration.milliseconds(region.randomTtlMillis()),
+                    RedisStringCommands.SetOption.upsert()));
+            return null;
+        });
+    }
+
+    /**
+     * 获取类型对应的编码，未注册的类型使用JSON
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CacheCodec<R> codecOf(Class<R> type){
+        return (CacheCodec<R>) codecs.computeIfAbsent(type, JsonCacheCodec::new);
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] encode(Object value){
+        return codecOf((Class<Object>) value.getClass()).encode(value);
+    }
+
+    private byte[] encodeLogicalExpire(Object value, long ttlMillis, int rebuildCost){
+        long expireTime = System.currentTimeMillis() + ttlMillis;
+        byte[] data = encode(value);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + Long.BYTES + Integer.BYTES + data.length);
+        buffer.put(LOGICAL_EXPIRE_MAGIC).putLong(expireTime).putInt(rebuildCost).put(data);
+        return buffer.array();
+    }
+
+    /**
+     * 解析逻辑过期数据，只反序列化一次
+     */
+    private <R> Expirable<R> decodeLogicalExpire(byte[] bytes, Class<R> type){
+        if(bytes[0] == LOGICAL_EXPIRE_MAGIC || bytes[0] == LOGICAL_EXPIRE_MAGIC_V1){
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            byte magic = buffer.get();
+            long expireTime = buffer.getLong();
+            int rebuildCost = magic == LOGICAL_EXPIRE_MAGIC ? buffer.getInt() : 0;
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return new Expirable<>(codecOf(type).decode(data), expireTime, rebuildCost);
+        }
+        //兼容旧的RedisData JSON格式
+        RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        return new Expirable<>(
+                JSONUtil.toBean((JSONObject) redisData.getData(), type),
+                redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), 0);
+    }
+
+    private static final class Expirable<R> {
+        private final R data;
+        private final long expireTime;
+        private final int rebuildCost;
+
+        private Expirable(R data, long expireTime, int rebuildCost) {
+            this.data = data;
+            this.expireTime = expireTime;
+            this.rebuildCost = rebuildCost;
+        }
+
+        private boolean isExpired(){
+            return expireTime <= System.currentTimeMillis();
+        }
+
+        /**
+         * XFetch算法：now - rebuildCost * beta * ln(random) >= expireTime 时提前刷新
+         * 越接近过期、重建越慢，提前刷新的概率越大；beta为0时退化为过期后才刷新
+         */
+        private boolean shouldRefresh(double beta){
+            if(isExpired()){
+                return true;
+            }
+            if(beta <= 0 || rebuildCost <= 0){
+                return false;
+            }
+            double gap = -rebuildCost * beta * Math.log(ThreadLocalRandom.current().nextDouble());
+            return System.currentTimeMillis() + gap >= expireTime;
+        }
+    }
+
+    /**
+     * 注册缓存区域，按key前缀查询时使用区域的锁前缀、空值有效期和统计
+     */
+    public void registerRegion(CacheRegion region){
+        regions.put(region.getKeyPrefix(), region);
+    }
+
+    /**
+     * 按key前缀查找已注册的区域，未注册的使用默认配置，锁前缀为 lock: + key前缀
+     */
+    private CacheRegion regionOf(String keyPrefix, Long time, TimeUnit unit){
+        return regions.computeIfAbsent(keyPrefix, prefix -> CacheRegion.builder(prefix, prefix).build())
+                .withTtl(time, unit);
+    }
+
+    /**
+     * 按区域配置的策略查询
+     * @param region 缓存区域
+     * @param id 数据id
+     * @param type 数据类型
+     * @param dbFallback 根据id查询数据库
+     */
+    public <R,ID> R query(CacheRegion region, ID id, Class<R> type, Function<ID,R> dbFallback){
+        switch (region.getStrategy()) {
+            case MUTEX:
+                return queryWithMutex(region, id, type, dbFallback);
+            case LOGICAL_EXPIRE:
+                return queryWithLogicalExpire(region, id, type, dbFallback, 0);
+            case EARLY_REFRESH:
+                return queryWithLogicalExpire(region, id, type, dbFallback, refreshBeta);
+            default:
+                return queryWithPassThrough(region, id, type, dbFallback);
+        }
     }
 
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time, TimeUnit unit) {
-        //1.从redis查询商铺缓存
-        String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        return queryWithPassThrough(regionOf(keyPrefix, time, unit), id, type, dbFallback);
+    }
+
+    private <R,ID> R queryWithPassThrough(CacheRegion region, ID id, Class<R> type, Function<ID,R> dbFallback) {
+        String key = region.key(id);
+        CacheRegion.Metrics metrics = region.getMetrics();
+        metrics.requests.increment();
+        //0.布隆过滤器判断id是否可能存在
+        if(!mightExist(region, id)){
+            return null;
+        }
+        //0.1热点key直接读取本地常驻副本
+        R pinned = getPinned(key, type);
+        if(pinned != null){
+            metrics.localHit.increment();
+            return pinned;
+        }
+        //0.2再查本地缓存
+        R local = getLocal(key, type);
+        if(local != null){
+            metrics.localHit.increment();
+            return local;
+        }
+        //1.从redis查询缓存
+        byte[] bytes = getFromRedis(region, key);
         //2.判断是否存在
-        if(StrUtil.isNotBlank(json)) {
-            //3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+        if(bytes != null && bytes.length > 0) {
+            //3.存在，写入本地缓存并返回
+            R r = codecOf(type).decode(bytes);
+            putLocal(key, r, region.getTtlMillis());
+            return r;
         }
         //判断命中的是否是空值
-        if(json != null){
+        if(bytes != null){
             //返回一个错误信息
+            metrics.nullHit.increment();
             return null;
         }
         //4.不存在，根据id查询数据库
+        metrics.dbLoad.increment();
         R r = dbFallback.apply(id);
         //5.不存在，返回错误
         if(r == null){
             //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
+            byteRedisTemplate.opsForValue().set(key,NULL_VALUE,region.getNullTtlMillis(), TimeUnit.MILLISECONDS);
             return null;
         }
-        //6.存在，写入redis
-        this.set(key,r,time,unit);
+        //6.存在，写入redis和本地缓存
+        this.set(key,r,region.randomTtlMillis(),TimeUnit.MILLISECONDS);
+        putLocal(key, r, region.getTtlMillis());
         //7.返回
         return r;
     }
 
-    public static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 批量查询，用于列表接口避免逐条查询缓存和数据库
+     * 1.本地缓存命中的直接返回
+     * 2.其余的key通过一次MGET查询redis
+     * 3.redis未命中的id通过一次IN查询数据库
+     * 4.查到的数据通过pipeline写回redis，过期时间加随机值避免同时失效
+     * 注意：返回的对象可能来自本地缓存，调用方修改前需要先复制
+     * @param keyPrefix 缓存key前缀
+     * @param ids id集合
+     * @param type 数据类型
+     * @param dbFallback 根据id集合批量查询数据库
+     * @param idGetter 从数据中获取id
+     * @return 按ids顺序排列的数据，不存在的id不包含在内
+     */
+    public <R,ID> Map<ID,R> queryBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+            Function<R,ID> idGetter, Long time, TimeUnit unit) {
+        return queryBatch(regionOf(keyPrefix, time, unit), ids, type, dbFallback, idGetter);
+    }
+
+    /**
+     * 按区域批量查询，见{@link #queryBatch(String, Collection, Class, Function, Function, Long, TimeUnit)}
+     */
+    public <R,ID> Map<ID,R> queryBatch(
+            CacheRegion region, Collection<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+            Function<R,ID> idGetter) {
+        CacheRegion.Metrics metrics = region.getMetrics();
+        Map<ID,R> found = new HashMap<>(ids.size());
+        //1.去重，过滤掉一定不存在的id，并查询本地缓存
+        List<ID> redisIds = new ArrayList<>(ids.size());
+        Set<ID> distinctIds = new LinkedHashSet<>(ids);
+        metrics.requests.add(distinctIds.size());
+        for (ID id : distinctIds) {
+            if(!mightExist(region, id)){
+                continue;
+            }
+            R local = getLocal(region.key(id), type);
+            if(local != null){
+                metrics.localHit.increment();
+                found.put(id, local);
+            }else{
+                redisIds.add(id);
+            }
+        }
+        //2.一次MGET查询redis
+        List<ID> dbIds = new ArrayList<>();
+        if(!redisIds.isEmpty()){
+            List<String> keys = new ArrayList<>(redisIds.size());
+            for (ID id : redisIds) {
+                keys.add(region.key(id));
+            }
+            List<byte[]> values = byteRedisTemplate.opsForValue().multiGet(keys);
+            CacheCodec<R> codec = codecOf(type);
+            for (int i = 0; i < redisIds.size(); i++) {
+                byte[] bytes = values == null ? null : values.get(i);
+                if(bytes != null && bytes.length > 0){
+                    redisHitCount.increment();
+                    metrics.redisHit.increment();
+                    R r = codec.decode(bytes);
+                    found.put(redisIds.get(i), r);
+                    putLocal(keys.get(i), r, region.getTtlMillis());
+                }else if(bytes == null){
+                    redisMissCount.increment();
+                    metrics.redisMiss.increment();
+                    dbIds.add(redisIds.get(i));
+                }else{
+                    //命中空值
+                    redisHitCount.increment();
+                    metrics.redisHit.increment();
+                    metrics.nullHit.increment();
+                }
+            }
+        }
+        //3.一次IN查询数据库
+        if(!dbIds.isEmpty()){
+            metrics.dbLoad.add(dbIds.size());
+            Map<String, byte[]> toCache = new HashMap<>(dbIds.size());
+            CacheCodec<R> codec = codecOf(type);
+            for (R r : dbFallback.apply(dbIds)) {
+                ID id = idGetter.apply(r);
+                found.put(id, r);
+                toCache.put(region.key(id), codec.encode(r));
+                putLocal(region.key(id), r, region.getTtlMillis());
+            }
+            for (ID id : dbIds) {
+                //数据库中也不存在，写入空值
+                toCache.putIfAbsent(region.key(id), NULL_VALUE);
+            }
+            //4.pipeline批量写回redis
+            byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                toCache.forEach((key, value) -> connection.stringCommands().set(
+                        key.getBytes(StandardCharsets.UTF_8), value,
+                        Expiration.milliseconds(value.length == 0 ? region.getNullTtlMillis() : region.randomTtlMillis()),
+                        RedisStringCommands.SetOption.upsert()));
+                return null;
+            });
+        }
+        //5.按ids的顺序返回
+        Map<ID,R> result = new LinkedHashMap<>(found.size());
+        for (ID id : distinctIds) {
+            R r = found.get(id);
+            if(r != null){
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
 
     public <R,ID> R queryWithLogicalExpire(
             String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit) {
-        //1.从redis查询商铺缓存
-        String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        return queryWithLogicalExpire(regionOf(keyPrefix, time, unit), id, type, dbFallback, 0);
+    }
+
+    /**
+     * 逻辑过期 + 提前刷新：在数据过期前按XFetch算法以一定概率提前重建，
+     * 热点数据会在过期前被刷新，不会返回过期数据，也不会在过期瞬间集中重建
+     */
+    public <R,ID> R queryWithEarlyRefresh(
+            String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit) {
+        return queryWithLogicalExpire(regionOf(keyPrefix, time, unit), id, type, dbFallback, refreshBeta);
+    }
+
+    private <R,ID> R queryWithLogicalExpire(
+            CacheRegion region,ID id,Class<R> type,Function<ID,R> dbFallback,double beta) {
+        String key = region.key(id);
+        CacheRegion.Metrics metrics = region.getMetrics();
+        metrics.requests.increment();
+        //0.布隆过滤器判断id是否可能存在
+        if(!mightExist(region, id)){
+            return null;
+        }
+        //1.从redis查询缓存
+        byte[] bytes = getFromRedis(region, key);
         //2.判断是否存在
-        if(StrUtil.isBlank(json)) {
+        if(bytes == null || bytes.length == 0) {
             //3.不存在，直接返回
             return null;
         }
-        //4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5.判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //5.1未过期，直接返回店铺信息
-            return r;
+        //4.命中，反序列化为对象
+        Expirable<R> cached = decodeLogicalExpire(bytes, type);
+        //5.判断是否需要刷新
+        if(!cached.shouldRefresh(beta)){
+            //5.1未过期，直接返回
+            return cached.data;
+        }
+        //5.2已过期或需要提前刷新，本节点已在重建则不再重复获取锁
+        if(rebuildingKeys.putIfAbsent(key, Boolean.TRUE) != null){
+            return cached.data;
         }
-        //5.2已过期，需要缓存重建
-        //6.缓存重建
-        //6.1获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //6.2判断是否获取锁成功
-        if(isLock){
-            //6.3成功，开启独立线程，实现缓存重建
-            //再次检测redis缓存是否过期
-            String Json2 = stringRedisTemplate.opsForValue().get(key);
-            RedisData redisData2 = JSONUtil.toBean(Json2, RedisData.class);
-            R r2 = JSONUtil.toBean((JSONObject) redisData2.getData(), type);
-            LocalDateTime expireTime2 = redisData2.getExpireTime();
-            //判断是否过期
-            if(expireTime2.isAfter(LocalDateTime.now())){
-                //未过期，直接返回店铺信息
-                return r2;
-            }
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        boolean submitted = false;
+        try {
+            //6.缓存重建
+            //6.1获取互斥锁
+            String lockKey = region.lockKey(id);
+            boolean isLock = tryLock(lockKey);
+            //6.2判断是否获取锁成功
+            if(!isLock){
+                metrics.lockFailed.increment();
+                return cached.data;
+            }
+            //6.3成功，再次检测redis缓存是否需要刷新
+            byte[] bytes2 = byteRedisTemplate.opsForValue().get(key);
+            Expirable<R> cached2 = bytes2 == null || bytes2.length == 0 ? null : decodeLogicalExpire(bytes2, type);
+            if(cached2 != null && cached2.expireTime > cached.expireTime){
+                //已被其它节点刷新，释放锁，直接返回
+                unLock(lockKey);
+                return cached2.data;
+            }
+            //6.4提交到重建线程池
+            Runnable rebuild = () -> {
                 try {
+                    long begin = System.currentTimeMillis();
                     //查询数据库
+                    metrics.dbLoad.increment();
                     R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
+                    int cost = (int) (System.currentTimeMillis() - begin);
+                    if(r1 == null){
+                        //数据库中已经不存在，删除缓存并通知所有节点，之后的查询直接返回null
+                        invalidate(key);
+                    }else{
+                        //写入redis
+                        this.setWithLogicalExpire(key,r1,region.randomTtlMillis(),TimeUnit.MILLISECONDS,cost);
+                    }
+                    rebuildCompletedCount.increment();
+                    rebuildCostTotal.add(cost);
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    rebuildFailedCount.increment();
+                    log.error("缓存重建失败, key: {}", key, e);
                 } finally {
                     //释放锁
                     unLock(lockKey);
+                    rebuildingKeys.remove(key);
                 }
-            });
+            };
+            try {
+                cacheRebuildExecutor.execute(rebuild);
+                submitted = true;
+                rebuildSubmittedCount.increment();
+            } catch (RejectedExecutionException e) {
+                rebuildRejectedCount.increment();
+                if(cached.isExpired()){
+                    //线程池已满且数据已过期，由当前线程重建，对调用方形成背压
+                    submitted = true;
+                    rebuild.run();
+                    return reloadLogicalExpire(key, type);
+                }
+                //未过期的提前刷新直接放弃，释放锁
+                unLock(lockKey);
+            }
+        } finally {
+            if(!submitted){
+                rebuildingKeys.remove(key);
+            }
         }
-        //6.4返回过期的商铺信息
+        //6.5返回旧数据
         //7.返回
-        return r;
+        return cached.data;
+    }
+
+    /**
+     * 同步重建后重新读取redis中的数据，数据库中已经不存在时缓存已被删除，返回null
+     */
+    private <R> R reloadLogicalExpire(String key, Class<R> type){
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+        if(bytes == null || bytes.length == 0){
+            return null;
+        }
+        return decodeLogicalExpire(bytes, type).data;
     }
 
     public <R,ID> R queryWithMutex(
             String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit) {
-        //1.从redis查询商铺缓存
-        String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        return queryWithMutex(regionOf(keyPrefix, time, unit), id, type, dbFallback);
+    }
+
+    private <R,ID> R queryWithMutex(CacheRegion region,ID id,Class<R> type,Function<ID,R> dbFallback) {
+        String key = region.key(id);
+        CacheRegion.Metrics metrics = region.getMetrics();
+        metrics.requests.increment();
+        //0.布隆过滤器判断id是否可能存在
+        if(!mightExist(region, id)){
+            return null;
+        }
+        //0.1热点key直接读取本地常驻副本
+        R pinned = getPinned(key, type);
+        if(pinned != null){
+            metrics.localHit.increment();
+            return pinned;
+        }
+        //0.2再查本地缓存
+        R local = getLocal(key, type);
+        if(local != null){
+            metrics.localHit.increment();
+            return local;
+        }
+        //1.从redis查询缓存
+        byte[] bytes = getFromRedis(region, key);
         //2.判断是否存在
-        if(StrUtil.isNotBlank(json)) {
-            //3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+        if(bytes != null && bytes.length > 0) {
+            //3.存在，写入本地缓存并返回
+            R r = codecOf(type).decode(bytes);
+            putLocal(key, r, region.getTtlMillis());
+            return r;
         }
         //判断命中的是否是空值
-        if(json != null){
+        if(bytes != null){
             //返回一个错误信息
+            metrics.nullHit.increment();
             return null;
         }
-        //4.不存在，根据id查询数据库
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            if(!isLock){
-                Thread.sleep(50);
-                queryWithMutex(keyPrefix,id,type,dbFallback,time,unit);
-            }
-            String Json2 = stringRedisTemplate.opsForValue().get(key);
-            //2.判断是否存在
-            if(StrUtil.isNotBlank(Json2)) {
-                //3.存在，直接返回
-                return JSONUtil.toBean(Json2, type);
-            }
-            //5.不存在，缓存重建
-             r = dbFallback.apply(id);
-            if(r == null){
-                //将空值写入redis
-                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
+        //4.不存在，同一节点上对同一个key的并发请求合并为一次重建
+        return singleFlight.execute(key, () -> rebuildWithMutex(region, id, type, dbFallback));
+    }
+
+    private <R,ID> R rebuildWithMutex(CacheRegion region,ID id,Class<R> type,Function<ID,R> dbFallback) {
+        String key = region.key(id);
+        String lockKey = region.lockKey(id);
+        //锁的有效期内轮询，超时后锁必然已释放或过期
+        long retries = TimeUnit.SECONDS.toMillis(CACHE_LOCK_TTL) / MUTEX_RETRY_INTERVAL;
+        for (long i = 0; i < retries; i++) {
+            //4.1获取互斥锁
+            if(tryLock(lockKey)){
+                try {
+                    return loadAndCache(region, id, type, dbFallback);
+                } finally {
+                    unLock(lockKey);
+                }
+            }
+            //4.2失败，说明其它节点正在重建，休眠后重新查询redis
+            if(i == 0){
+                region.getMetrics().lockFailed.increment();
+            }
+            try {
+                Thread.sleep(MUTEX_RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+            if(bytes != null && bytes.length > 0) {
+                R r = codecOf(type).decode(bytes);
+                putLocal(key, r, region.getTtlMillis());
+                return r;
+            }
+            if(bytes != null){
                 return null;
             }
-            //6.存在，写入redis
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(r),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            unLock(lockKey);
         }
+        //4.3一直没有等到重建结果，直接查询数据库
+        return loadAndCache(region, id, type, dbFallback);
+    }
+
+    private <R,ID> R loadAndCache(CacheRegion region,ID id,Class<R> type,Function<ID,R> dbFallback) {
+        String key = region.key(id);
+        //再次检查redis，可能已被其它节点重建
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+        if(bytes != null && bytes.length > 0) {
+            R r = codecOf(type).decode(bytes);
+            putLocal(key, r, region.getTtlMillis());
+            return r;
+        }
+        //5.不存在，缓存重建
+        region.getMetrics().dbLoad.increment();
+        R r = dbFallback.apply(id);
+        if(r == null){
+            //将空值写入redis
+            byteRedisTemplate.opsForValue().set(key,NULL_VALUE,region.getNullTtlMillis(), TimeUnit.MILLISECONDS);
+            return null;
+        }
+        //6.存在，写入redis和本地缓存
+        this.set(key,r,region.randomTtlMillis(),TimeUnit.MILLISECONDS);
+        putLocal(key, r, region.getTtlMillis());
         //7.返回
         return r;
     }
 
+    /**
+     * 删除redis中的缓存，并通过redis发布订阅通知所有节点清除本地缓存
+     * @param key 缓存key
+     */
+    public void invalidate(String key){
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 批量删除redis中的缓存，通过一条消息通知所有节点清除本地缓存
+     * @param keys 缓存key
+     */
+    public void invalidateAll(Collection<String> keys){
+        if(keys.isEmpty()){
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        keys.forEach(this::evictLocal);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, String.join("\n", keys));
+    }
+
+    /**
+     * 清除本节点的本地缓存，收到失效通知时调用
+     * @param key 缓存key
+     */
+    public void evictLocal(String key){
+        localCache.remove(key);
+        PinnedEntry pinnedEntry = pinnedEntries.get(key);
+        if(pinnedEntry != null){
+            //常驻副本清空，等待下次刷新时从redis重新加载
+            pinnedEntry.value = null;
+        }
+    }
+
+    /**
+     * 当前的热点key及其QPS，以及是否已在本地常驻
+     */
+    public List<Map<String, Object>> getHotKeys(){
+        List<Map<String, Object>> hotKeys = hotKeyDetector.getHotKeys();
+        for (Map<String, Object> hotKey : hotKeys) {
+            hotKey.put("pinned", pinnedEntries.containsKey((String) hotKey.get("key")));
+        }
+        return hotKeys;
+    }
+
+    /**
+     * 记录访问次数，热点key加入本地常驻副本，并返回常驻副本中的值
+     */
+    private <R> R getPinned(String key, Class<R> type){
+        if(hotKeyDetector.record(key) && !pinnedEntries.containsKey(key)){
+            pinnedEntries.putIfAbsent(key, new PinnedEntry(() -> {
+                byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+                return bytes == null || bytes.length == 0 ? null : codecOf(type).decode(bytes);
+            }));
+        }
+        PinnedEntry pinnedEntry = pinnedEntries.get(key);
+        if(pinnedEntry == null){
+            return null;
+        }
+        Object value = pinnedEntry.value;
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    /**
+     * 定时刷新常驻副本，移除已经不热的key
+     */
+    private void refreshPinned(){
+        hotKeyDetector.refresh();
+        pinnedEntries.keySet().removeIf(key -> !hotKeyDetector.isHot(key));
+        pinnedEntries.forEach((key, pinnedEntry) -> {
+            try {
+                pinnedEntry.value = pinnedEntry.loader.get();
+            } catch (Exception e) {
+                pinnedEntry.value = null;
+                log.warn("刷新热点key失败, key: {}", key, e);
+            }
+        });
+    }
+
+    private static final class PinnedEntry {
+        private final Supplier<Object> loader;
+        private volatile Object value;
+
+        private PinnedEntry(Supplier<Object> loader) {
+            this.loader = loader;
+        }
+    }
+
+    @PreDestroy
+    public void destroy(){
+        hotKeyRefresher.shutdownNow();
+        cacheRebuildExecutor.shutdown();
+    }
+
+    /**
+     * 为某一类缓存注册布隆过滤器，查询前先判断id是否可能存在
+     * @param keyPrefix 缓存key前缀
+     * @param bloomFilter 布隆过滤器
+     */
+    public void registerBloomFilter(String keyPrefix, BloomFilter bloomFilter){
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 判断id是否可能存在，布隆过滤器未注册或未初始化完成时一律放行
+     */
+    public boolean mightExist(String keyPrefix, Object id){
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if(bloomFilter == null || !bloomFilter.isReady() || bloomFilter.mightContain(id)){
+            return true;
+        }
+        bloomRejectCount.increment();
+        return false;
+    }
+
+    private boolean mightExist(CacheRegion region, Object id){
+        if(mightExist(region.getKeyPrefix(), id)){
+            return true;
+        }
+        region.getMetrics().bloomRejected.increment();
+        return false;
+    }
+
+    /**
+     * 新增数据后把id加入布隆过滤器，并通知其它节点
+     * @param keyPrefix 缓存key前缀
+     * @param id 新增数据的id
+     */
+    public void addToBloomFilter(String keyPrefix, Object id){
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if(bloomFilter == null){
+            return;
+        }
+        bloomFilter.put(id);
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_ADD_CHANNEL, keyPrefix + id);
+    }
+
+    /**
+     * 收到其它节点的新增通知，把id加入本节点的布隆过滤器
+     * @param key 缓存key，即前缀 + id
+     */
+    public void onBloomFilterAdd(String key){
+        bloomFilters.forEach((keyPrefix, bloomFilter) -> {
+            if(key.startsWith(keyPrefix)){
+                bloomFilter.put(key.substring(keyPrefix.length()));
+            }
+        });
+    }
+
+    /**
+     * 各级缓存的命中统计
+     */
+    public Map<String, Object> getStats(){
+        Map<String, Object> local = new LinkedHashMap<>();
+        local.put("size", localCache.size());
+        local.put("capacity", localCache.capacity());
+        local.put("hit", localCache.getHitCount());
+        local.put("miss", localCache.getMissCount());
+        Map<String, Object> redis = new LinkedHashMap<>();
+        redis.put("hit", redisHitCount.sum());
+        redis.put("miss", redisMissCount.sum());
+        local.put("pinned", pinnedEntries.size());
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("local", local);
+        stats.put("redis", redis);
+        Map<String, Object> bloom = new LinkedHashMap<>();
+        bloomFilters.forEach((keyPrefix, bloomFilter) -> bloom.put(keyPrefix, bloomFilter.getStats()));
+        bloom.put("rejected", bloomRejectCount.sum());
+        stats.put("bloom", bloom);
+        Map<String, Object> rebuild = new LinkedHashMap<>();
+        rebuild.put("executed", singleFlight.getExecutedCount());
+        rebuild.put("shared", singleFlight.getSharedCount());
+        rebuild.put("inFlight", singleFlight.getInFlight());
+        stats.put("rebuild", rebuild);
+        Map<String, Object> refresh = new LinkedHashMap<>();
+        refresh.put("submitted", rebuildSubmittedCount.sum());
+        refresh.put("rejected", rebuildRejectedCount.sum());
+        refresh.put("completed", rebuildCompletedCount.sum());
+        refresh.put("failed", rebuildFailedCount.sum());
+        long completed = rebuildCompletedCount.sum();
+        refresh.put("avgCostMillis", completed == 0 ? 0 : rebuildCostTotal.sum() / completed);
+        refresh.put("activeThreads", cacheRebuildExecutor.getActiveCount());
+        refresh.put("queueSize", cacheRebuildExecutor.getQueue().size());
+        refresh.put("queueRemaining", cacheRebuildExecutor.getQueue().remainingCapacity());
+        stats.put("refresh", refresh);
+        Map<String, Object> regionStats = new LinkedHashMap<>();
+        regions.values().forEach(region -> regionStats.put(region.getName(), region.getStats()));
+        stats.put("regions", regionStats);
+        return stats;
+    }
+
+    private <R> R getLocal(String key, Class<R> type){
+        Object value = localCache.get(key, false);
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    private void putLocal(String key, Object value, long ttlMillis){
+        //本地缓存的有效期不超过redis中的有效期
+        localCache.put(key, value, Math.min(localTtl, ttlMillis));
+    }
+
+    private byte[] getFromRedis(CacheRegion region, String key){
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+        if(bytes == null){
+            redisMissCount.increment();
+            region.getMetrics().redisMiss.increment();
+        }else{
+            redisHitCount.increment();
+            region.getMetrics().redisHit.increment();
+        }
+        return bytes;
+    }
+
     private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", CACHE_LOCK_TTL, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
     }
 
@@ -0,0 +1,28 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的序列化接口，注册为spring bean后CacheClient会对该类型使用此编码
+ * 未注册编码的类型默认使用JSON
+ * @param <T> 缓存的数据类型
+ */
+public interface CacheCodec<T> {
+
+    /**
+     * 支持的数据类型
+     */
+    Class<T> type();
+
+    /**
+     * 序列化
+     * @param value 数据，不为null
+     * @return 字节数组
+     */
+    byte[] encode(T value);
+
+    /**
+     * 反序列化
+     * @param bytes 字节数组，不为空
+     * @return 数据
+     */
+    T decode(byte[] bytes);
+}
@@ -0,0 +1,200 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+
+/**
+ * 缓存区域：同一类数据的key前缀、锁前缀、有效期、空值有效期和重建策略
+ * 每个区域使用自己的锁，单独统计命中情况，不同区域的重建互不影响
+ */
+@Getter
+public class CacheRegion {
+
+    public enum Strategy {
+        /**
+         * 缓存空值，未命中时直接查询数据库
+         */
+        PASS_THROUGH,
+        /**
+         * 未命中时通过互斥锁重建
+         */
+        MUTEX,
+        /**
+         * 逻辑过期，过期后异步重建并返回旧数据
+         */
+        LOGICAL_EXPIRE,
+        /**
+         * 逻辑过期，并在过期前按XFetch算法提前重建
+         */
+        EARLY_REFRESH
+    }
+
+    private final String name;
+
+    private final String keyPrefix;
+
+    private final String lockPrefix;
+
+    /**
+     * 有效期（毫秒），逻辑过期策略下为逻辑过期时间
+     */
+    private final long ttlMillis;
+
+    /**
+     * 有效期随机增加的比例，避免同一批key同时过期
+     */
+    private final double jitter;
+
+    /**
+     * 空值的有效期（毫秒）
+     */
+    private final long nullTtlMillis;
+
+    private final Strategy strategy;
+
+    private final Metrics metrics;
+
+    private CacheRegion(Builder builder, Metrics metrics) {
+        this.name = builder.name;
+        this.keyPrefix = builder.keyPrefix;
+        this.lockPrefix = builder.lockPrefix == null ? "lock:" + builder.keyPrefix : builder.lockPrefix;
+        this.ttlMillis = builder.ttlMillis;
+        this.jitter = builder.jitter;
+        this.nullTtlMillis = builder.nullTtlMillis;
+        this.strategy = builder.strategy;
+        this.metrics = metrics;
+    }
+
+    public static Builder builder(String name, String keyPrefix) {
+        return new Builder(name, keyPrefix);
+    }
+
+    public String key(Object id) {
+        return keyPrefix + id;
+    }
+
+    public String lockKey(Object id) {
+        return lockPrefix + id;
+    }
+
+    /**
+     * 增加随机值后的有效期（毫秒）
+     */
+    public long randomTtlMillis() {
+        long bound = (long) (ttlMillis * jitter);
+        return bound <= 0 ? ttlMillis : ttlMillis + RandomUtil.randomLong(bound + 1);
+    }
+
+    /**
+     * 使用调用方指定的有效期，其余配置和统计与当前区域共用
+     */
+    public CacheRegion withTtl(long time, TimeUnit unit) {
+        long millis = unit.toMillis(time);
+        if (millis == ttlMillis) {
+            return this;
+        }
+        return new CacheRegion(toBuilder().ttl(time, unit), metrics);
+    }
+
+    private Builder toBuilder() {
+        Builder builder = new Builder(name, keyPrefix);
+        builder.lockPrefix = lockPrefix;
+        builder.ttlMillis = ttlMillis;
+        builder.jitter = jitter;
+        builder.nullTtlMillis = nullTtlMillis;
+        builder.strategy = strategy;
+        return builder;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("keyPrefix", keyPrefix);
+        stats.put("strategy", strategy);
+        stats.put("ttlMillis", ttlMillis);
+        stats.putAll(metrics.toMap());
+        return stats;
+    }
+
+    public static final class Builder {
+        private final String name;
+        private final String keyPrefix;
+        private String lockPrefix;
+        private long ttlMillis = TimeUnit.MINUTES.toMillis(30);
+        private double jitter = 0.1;
+        private long nullTtlMillis = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        private Strategy strategy = Strategy.PASS_THROUGH;
+
+        private Builder(String name, String keyPrefix) {
+            this.name = name;
+            this.keyPrefix = keyPrefix;
+        }
+
+        /**
+         * 锁的key前缀，默认为 lock: + 缓存key前缀
+         */
+        public Builder lockPrefix(String lockPrefix) {
+            this.lockPrefix = lockPrefix;
+            return this;
+        }
+
+        public Builder ttl(long time, TimeUnit unit) {
+            this.ttlMillis = unit.toMillis(time);
+            return this;
+        }
+
+        public Builder jitter(double jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        public Builder nullTtl(long time, TimeUnit unit) {
+            this.nullTtlMillis = unit.toMillis(time);
+            return this;
+        }
+
+        public Builder strategy(Strategy strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        public CacheRegion build() {
+            return new CacheRegion(this, new Metrics());
+        }
+    }
+
+    /**
+     * 区域内的命中统计
+     */
+    public static final class Metrics {
+        final LongAdder requests = new LongAdder();
+        final LongAdder bloomRejected = new LongAdder();
+        final LongAdder localHit = new LongAdder();
+        final LongAdder redisHit = new LongAdder();
+        final LongAdder redisMiss = new LongAdder();
+        final LongAdder nullHit = new LongAdder();
+        final LongAdder dbLoad = new LongAdder();
+        final LongAdder lockFailed = new LongAdder();
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            long total = requests.sum();
+            map.put("requests", total);
+            map.put("bloomRejected", bloomRejected.sum());
+            map.put("localHit", localHit.sum());
+            map.put("redisHit", redisHit.sum());
+            map.put("redisMiss", redisMiss.sum());
+            map.put("nullHit", nullHit.sum());
+            map.put("dbLoad", dbLoad.sum());
+            map.put("lockFailed", lockFailed.sum());
+            map.put("hitRate", total == 0 ? 0 : (double) (total - dbLoad.sum()) / total);
+            return map;
+        }
+    }
+}
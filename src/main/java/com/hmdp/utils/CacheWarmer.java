@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+
+/**
+ * 启动时预热缓存：分页读取tb_shop写入店铺的geo索引，并写入热门店铺和热门博客的缓存
+ * 在ApplicationRunner中同步执行，完成后应用才会发布ReadinessState.ACCEPTING_TRAFFIC
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    public enum State {
+        PENDING, RUNNING, DONE, FAILED, DISABLED
+    }
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheRegion shopRegion;
+
+    @Resource
+    private CacheRegion blogRegion;
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 并行写入redis的线程数
+     */
+    @Value("${hmdp.warmup.parallelism:4}")
+    private int parallelism;
+
+    /**
+     * 每页读取的店铺数量
+     */
+    @Value("${hmdp.warmup.page-size:1000}")
+    private int pageSize;
+
+    /**
+     * 预热的热门店铺数量（按销量）
+     */
+    @Value("${hmdp.warmup.top-shops:1000}")
+    private int topShops;
+
+    /**
+     * 预热的热门博客数量（按点赞数）
+     */
+    @Value("${hmdp.warmup.top-blogs:1000}")
+    private int topBlogs;
+
+    private volatile State state = State.PENDING;
+    private volatile long startTime;
+    private volatile long endTime;
+    private final AtomicLong shopTotal = new AtomicLong();
+    private final AtomicLong geoLoaded = new AtomicLong();
+    private final AtomicLong shopCacheLoaded = new AtomicLong();
+    private final AtomicLong blogCacheLoaded = new AtomicLong();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            state = State.DISABLED;
+            return;
+        }
+        state = State.RUNNING;
+        startTime = System.currentTimeMillis();
+        //有界队列，队列满时由读取数据库的线程自己写入，避免一次把全表读入内存
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(parallelism),
+                new NamedThreadFactory("cache-warmup-", true), new ThreadPoolExecutor.CallerRunsPolicy());
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            shopTotal.set(shopService.count());
+            //1.分页读取店铺，写入geo索引
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = shopService.list(new QueryWrapper<Shop>()
+                        .select("id", "type_id", "x", "y")
+                        .gt("id", lastId).orderByAsc("id").last("limit " + pageSize));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                futures.add(executor.submit(() -> loadGeo(shops)));
+                if (shops.size() < pageSize) {
+                    break;
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            //2.热门店铺和博客写入缓存
+            List<Shop> hotShops = shopService.query()
+                    .orderByDesc("sold").last("limit " + topShops).list();
+            submitInBatches(executor, futures, hotShops, batch -> {
+                cacheClient.putAll(shopRegion, batch, Shop::getId);
+                shopCacheLoaded.addAndGet(batch.size());
+            });
+            List<Blog> hotBlogs = blogService.query()
+                    .orderByDesc("liked").last("limit " + topBlogs).list();
+            submitInBatches(executor, futures, hotBlogs, batch -> {
+                cacheClient.putAll(blogRegion, batch, Blog::getId);
+                blogCacheLoaded.addAndGet(batch.size());
+            });
+            //3.等待全部写入完成
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            state = State.DONE;
+            log.info("缓存预热完成: {}", getProgress());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state = State.FAILED;
+            log.warn("缓存预热被中断: {}", getProgress());
+        } catch (ExecutionException | RuntimeException e) {
+            //预热失败不影响启动，未预热的数据由查询时加载
+            state = State.FAILED;
+            log.error("缓存预热失败: {}", getProgress(), e);
+        } finally {
+            endTime = System.currentTimeMillis();
+            executor.shutdownNow();
+        }
+    }
+
+    private <T> void submitInBatches(ThreadPoolExecutor executor, List<Future<?>> futures,
+                                     List<T> values, Consumer<List<T>> action) {
+        for (int from = 0; from < values.size(); from += pageSize) {
+            List<T> batch = values.subList(from, Math.min(from + pageSize, values.size()));
+            futures.add(executor.submit(() -> action.accept(batch)));
+        }
+    }
+
+    /**
+     * 按类型分组，通过pipeline写入geo索引
+     */
+    private void loadGeo(List<Shop> shops) {
+        Map<String, Map<String, Point>> geo = new HashMap<>();
+        for (Shop shop : shops) {
+            if (shop.getX() == null || shop.getY() == null) {
+                continue;
+            }
+            geo.computeIfAbsent(SHOP_GEO_KEY + shop.getTypeId(), key -> new HashMap<>())
+                    .put(shop.getId().toString(), new Point(shop.getX(), shop.getY()));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            geo.forEach(stringRedisConnection::geoAdd);
+            return null;
+        });
+        geoLoaded.addAndGet(shops.size());
+    }
+
+    public Map<String, Object> getProgress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("state", state);
+        long total = shopTotal.get();
+        progress.put("shopTotal", total);
+        progress.put("geoLoaded", geoLoaded.get());
+        progress.put("geoProgress", total == 0 ? 0 : (double) geoLoaded.get() / total);
+        progress.put("shopCacheLoaded", shopCacheLoaded.get());
+        progress.put("blogCacheLoaded", blogCacheLoaded.get());
+        if (startTime > 0) {
+            long end = endTime > 0 ? endTime : System.currentTimeMillis();
+            progress.put("elapsedMillis", end - startTime);
+        }
+        return progress;
+    }
+}
@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测：滑动窗口内的访问次数用Count-Min Sketch估算，超过阈值的key进入Top-K候选
+ * 窗口按秒分成若干格，每格一个sketch，过期的格在下次写入时清空
+ */
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    /**
+     * 窗口格数（秒）
+     */
+    private final int windowSeconds;
+
+    /**
+     * 每行的计数器个数，2的幂
+     */
+    private final int width;
+
+    /**
+     * 判定为热点的QPS阈值
+     */
+    private final long threshold;
+
+    /**
+     * 最多记录的热点key数量
+     */
+    private final int topK;
+
+    private final Slot[] slots;
+
+    /**
+     * 热点key -> 最近一次估算的窗口内访问次数
+     */
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    public HotKeyDetector(int windowSeconds, int width, long threshold, int topK) {
+        this.windowSeconds = windowSeconds;
+        this.width = Integer.highestOneBit(Math.max(width, 16));
+        this.threshold = threshold;
+        this.topK = topK;
+        this.slots = new Slot[windowSeconds];
+        for (int i = 0; i < windowSeconds; i++) {
+            slots[i] = new Slot(DEPTH * this.width);
+        }
+    }
+
+    /**
+     * 记录一次访问
+     * @return 该key当前是否是热点
+     */
+    public boolean record(String key) {
+        long second = System.currentTimeMillis() / 1000;
+        Slot slot = slots[(int) (second % windowSeconds)];
+        slot.rotate(second);
+        int hash = key.hashCode();
+        for (int i = 0; i < DEPTH; i++) {
+            slot.counters.incrementAndGet(index(hash, i));
+        }
+        long qps = estimate(hash, second) / windowSeconds;
+        if (qps < threshold) {
+            return false;
+        }
+        hotKeys.put(key, qps);
+        if (hotKeys.size() > topK) {
+            evictColdest();
+        }
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 重新估算所有热点key，移除已经降温的key
+     */
+    public void refresh() {
+        long second = System.currentTimeMillis() / 1000;
+        hotKeys.replaceAll((key, old) -> estimate(key.hashCode(), second) / windowSeconds);
+        hotKeys.values().removeIf(qps -> qps < threshold);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 按QPS从高到低排列的热点key
+     */
+    public List<Map<String, Object>> getHotKeys() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(hotKeys.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        List<Map<String, Object>> result = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Long> entry : entries) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", entry.getKey());
+            item.put("qps", entry.getValue());
+            result.add(item);
+        }
+        return result;
+    }
+
+    private long estimate(int hash, long second) {
+        long total = 0;
+        for (Slot slot : slots) {
+            if (second - slot.second.get() >= windowSeconds) {
+                continue;
+            }
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, slot.counters.get(index(hash, i)));
+            }
+            total += min;
+        }
+        return total;
+    }
+
+    private void evictColdest() {
+        hotKeys.entrySet().stream()
+                .min(Comparator.comparingLong(Map.Entry::getValue))
+                .ifPresent(entry -> hotKeys.remove(entry.getKey(), entry.getValue()));
+    }
+
+    private int index(int hash, int row) {
+        //murmur3的fmix32
+        int h = hash ^ SEEDS[row];
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return row * width + (h & (width - 1));
+    }
+
+    private static final class Slot {
+        private final AtomicLong second = new AtomicLong();
+        private final AtomicLongArray counters;
+
+        private Slot(int size) {
+            this.counters = new AtomicLongArray(size);
+        }
+
+        /**
+         * 该格属于更早的窗口时清空重用
+         */
+        private void rotate(long now) {
+            long old = second.get();
+            if (old != now && second.compareAndSet(old, now)) {
+                for (int i = 0; i < counters.length(); i++) {
+                    counters.set(i, 0);
+                }
+            }
+        }
+    }
+}
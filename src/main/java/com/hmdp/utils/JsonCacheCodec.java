@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 基于JSON的默认编码，与StringRedisTemplate写入的JSON字符串兼容
+ */
+public class JsonCacheCodec<T> implements CacheCodec<T> {
+
+    private final Class<T> type;
+
+    public JsonCacheCodec(Class<T> type) {
+        this.type = type;
+    }
+
+    @Override
+    public Class<T> type() {
+        return type;
+    }
+
+    @Override
+    public byte[] encode(T value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T decode(byte[] bytes) {
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        if (type.isArray()) {
+            //数组类型按元素类型逐个转换
+            Class<?> componentType = type.getComponentType();
+            List<?> list = JSONUtil.toList(JSONUtil.parseArray(json), componentType);
+            return (T) list.toArray((Object[]) Array.newInstance(componentType, list.size()));
+        }
+        return JSONUtil.toBean(json, type);
+    }
+}
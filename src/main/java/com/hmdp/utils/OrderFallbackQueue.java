@@ -0,0 +1,618 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.ConnectionBlockedEvent;
+import org.springframework.amqp.rabbit.connection.ConnectionUnblockedEvent;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * rabbitmq不可用时的本地订单队列
+ * 1.请求线程只把订单放入多生产者单消费者的环形队列（CAS，不加锁，不做文件IO），随后立即返回
+ * 2.唯一的写线程从环形队列取出订单，批量追加到本地日志文件，再按日志顺序批量发送到rabbitmq，确认异步到达
+ * 3.已发送的订单按日志顺序排队，队头连续确认的订单推进检查点；被拒绝、超时未确认或者发送失败时，
+ *   从检查点开始重新读取日志补发，之后确认过的订单可能重复发送，由消费者按订单id去重
+ * 4.补发的订单收到第一个确认后立即恢复直接发送，剩余的订单由写线程在后台补发；全部发送完成后清空日志
+ * 5.重启时从检查点补发上次没有发送的订单；写入日志之前进程崩溃会丢失环形队列中的订单，由对账任务按redis中的购买记录补发
+ * 日志每行一个订单：订单id,用户id,优惠券id,入队时间
+ */
+@Slf4j
+@Component
+public class OrderFallbackQueue {
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * 环形队列满时请求线程等待写线程腾出空间的间隔
+     */
+    private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * 检查点每推进多少字节保存一次，重启后最多重复发送这部分订单
+     */
+    private static final long CHECKPOINT_BYTES = 4096;
+
+    /**
+     * 每次从环形队列取出并写入日志的最大订单数，避免长时间不处理确认
+     */
+    private static final int MAX_JOURNAL_BATCH = 4096;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    /**
+     * 环形队列容量，也是写入日志后留在内存中等待发送的最大订单数，超过后从日志读取
+     */
+    @Value("${hmdp.order.fallback.capacity:65536}")
+    private int capacity;
+
+    /**
+     * 日志文件路径，检查点保存在同目录的.checkpoint文件中
+     */
+    @Value("${hmdp.order.fallback.journal:data/order.journal}")
+    private String journalPath;
+
+    /**
+     * 发送失败后重试的间隔（毫秒）
+     */
+    @Value("${hmdp.order.fallback.retry-interval:1000}")
+    private long retryInterval;
+
+    /**
+     * 每批在同一个channel上发送的最大订单数
+     */
+    @Value("${hmdp.order.fallback.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 已发送未确认的最大订单数
+     */
+    @Value("${hmdp.order.fallback.max-in-flight:1000}")
+    private int maxInFlight;
+
+    /**
+     * 等待broker确认的最长时间（毫秒）
+     */
+    @Value("${hmdp.order.publisher.confirm-timeout:5000}")
+    private long confirmTimeout;
+
+    /**
+     * 请求线程写入、写线程读取的环形队列
+     */
+    private RingBuffer<Entry> inbox;
+
+    private FileChannel journal;
+
+    private FileChannel checkpointFile;
+
+    /**
+     * 日志的写入位置，只由写线程修改
+     */
+    private volatile long writePosition;
+
+    /**
+     * 下一个要发送的订单在日志中的位置，只由写线程访问
+     */
+    private long sendPosition;
+
+    /**
+     * 已经写入日志、还没有发送的订单，只由写线程访问；fromJournal为true时为空，待发送的订单从日志读取
+     */
+    private final ArrayDeque<Entry> unsent = new ArrayDeque<>();
+
+    private boolean fromJournal;
+
+    /**
+     * 已发送未结算的订单，按日志顺序排列，只由写线程访问
+     */
+    private final ArrayDeque<Entry> inFlight = new ArrayDeque<>();
+
+    /**
+     * 发送失败后下一次发送的时间，只由写线程访问
+     */
+    private long retryAt;
+
+    /**
+     * 队头连续确认到的日志位置，只由写线程修改
+     */
+    private volatile long checkpoint;
+
+    private long savedCheckpoint;
+
+    private volatile boolean brokerAvailable = true;
+
+    /**
+     * broker因为内存或磁盘告警阻塞了连接
+     */
+    private volatile boolean brokerBlocked;
+
+    private volatile boolean dirty;
+
+    private volatile boolean running = true;
+
+    private Thread writer;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder inboxFull = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder confirmed = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder publishFailures = new LongAdder();
+
+    @PostConstruct
+    private void init() throws IOException {
+        inbox = new RingBuffer<>(capacity);
+        Path path = Paths.get(journalPath).toAbsolutePath();
+        Files.createDirectories(path.getParent());
+        journal = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        checkpointFile = FileChannel.open(path.resolveSibling(path.getFileName() + ".checkpoint"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        //1.读取检查点，截掉崩溃时写了一半的记录
+        long end = completeLength(journal);
+        journal.truncate(end);
+        checkpoint = Math.min(readCheckpoint(), end);
+        savedCheckpoint = checkpoint;
+        writePosition = end;
+        sendPosition = checkpoint;
+        //2.检查点之后还有订单，说明上次没有发送完，由写线程从日志补发
+        if (end > checkpoint) {
+            fromJournal = true;
+            brokerAvailable = false;
+            log.warn("发现未发送的订单日志, 待补发字节数: {}", end - checkpoint);
+        }
+        writer = new Thread(this::run, "order-fallback");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    private void destroy() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5) + confirmTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //写线程已经退出，关闭期间放入的订单由当前线程写入日志，重启后补发
+        if (!writer.isAlive()) {
+            while (journalInbox()) {
+                //继续写入
+            }
+        }
+        saveCheckpoint();
+        journal.force(false);
+        journal.close();
+        checkpointFile.close();
+    }
+
+    /**
+     * broker可用时可以直接发送，发送失败之后到本地队列收到确认之前应当放入本地队列
+     */
+    public boolean isBrokerAvailable() {
+        return brokerAvailable && !brokerBlocked;
+    }
+
+    /**
+     * 发送失败后调用，之后的订单都写入本地队列，直到本地队列重新收到broker的确认
+     */
+    public void markBrokerUnavailable() {
+        brokerAvailable = false;
+    }
+
+    /**
+     * 订单放入环形队列，由写线程写入日志后发送
+     * 只缓冲订单，不改变broker的状态：发送窗口已满时订单同样写入本地队列，但broker仍然可以直接发送
+     * 环形队列满时等待写线程腾出空间，请求线程不加锁也不做文件IO
+     */
+    public void offer(VoucherOrder voucherOrder) {
+        Entry entry = new Entry(voucherOrder, System.currentTimeMillis());
+        if (!inbox.offer(entry)) {
+            inboxFull.increment();
+            do {
+                if (!writer.isAlive()) {
+                    throw new IllegalStateException("本地订单队列已关闭, orderId: " + voucherOrder.getId());
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(FULL_WAIT_NANOS);
+            } while (!inbox.offer(entry));
+        }
+        accepted.increment();
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * 定期把日志刷到磁盘，写线程只写入页缓存
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.fallback.flush-interval:100}")
+    public void flush() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        try {
+            journal.force(false);
+        } catch (IOException e) {
+            dirty = true;
+            log.error("刷新订单日志失败", e);
+        }
+    }
+
+    @EventListener
+    public void onBlocked(ConnectionBlockedEvent event) {
+        log.warn("rabbitmq连接被阻塞, reason: {}", event.getReason());
+        brokerBlocked = true;
+    }
+
+    @EventListener
+    public void onUnblocked(ConnectionUnblockedEvent event) {
+        log.info("rabbitmq连接恢复");
+        brokerBlocked = false;
+        LockSupport.unpark(writer);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                //1.写入日志，2.结算已经确认的订单，3.发送下一批
+                boolean busy = journalInbox();
+                busy |= settle();
+                busy |= send();
+                if (!busy) {
+                    //4.全部发送完成，清空日志
+                    compact();
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            } catch (Exception e) {
+                log.error("处理本地订单队列异常", e);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(retryInterval));
+            }
+        }
+        //退出前把收到的订单写入日志，等待已发送的订单确认后推进检查点
+        try {
+            while (journalInbox()) {
+                //继续写入
+            }
+            long deadline = System.currentTimeMillis() + confirmTimeout;
+            while (!inFlight.isEmpty() && System.currentTimeMillis() < deadline) {
+                settle();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        } catch (IOException e) {
+            log.error("关闭本地订单队列失败", e);
+        }
+    }
+
+    /**
+     * 从环形队列取出订单，整批追加到日志
+     * @return 是否写入了订单
+     */
+    private boolean journalInbox() throws IOException {
+        Entry entry = inbox.poll();
+        if (entry == null) {
+            return false;
+        }
+        List<Entry> batch = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = writePosition;
+        do {
+            byte[] line = (entry.voucherOrder.getId() + "," + entry.voucherOrder.getUserId() + ","
+                    + entry.voucherOrder.getVoucherId() + "," + entry.timestamp + "\n").getBytes(StandardCharsets.UTF_8);
+            if (buffer.remaining() < line.length) {
+                position = write(buffer, position);
+            }
+            buffer.put(line);
+            entry.end = position + buffer.position();
+            batch.add(entry);
+        } while (batch.size() < MAX_JOURNAL_BATCH && (entry = inbox.poll()) != null);
+        writePosition = write(buffer, position);
+        dirty = true;
+        //写入日志后留在内存中等待发送，内存中的订单过多时改为从日志读取
+        for (Entry journaled : batch) {
+            if (fromJournal) {
+                break;
+            }
+            if (unsent.size() >= capacity) {
+                fromJournal = true;
+                unsent.clear();
+                overflowed.increment();
+                break;
+            }
+            unsent.add(journaled);
+        }
+        return true;
+    }
+
+    private long write(ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += journal.write(buffer, position);
+        }
+        buffer.clear();
+        return position;
+    }
+
+    /**
+     * 按日志顺序结算已发送的订单，队头连续确认的订单推进检查点；队头被拒绝或者超时未确认时从检查点重新发送
+     * @return 是否有进展
+     */
+    private boolean settle() throws IOException {
+        boolean progressed = false;
+        Entry head;
+        while ((head = inFlight.peekFirst()) != null) {
+            int state = head.state;
+            if (state == Entry.ACKED) {
+                inFlight.pollFirst();
+                confirmed.increment();
+                advance(head.end);
+                progressed = true;
+                continue;
+            }
+            if (state == Entry.NACKED) {
+                rewind("订单消息被拒绝, orderId: " + head.voucherOrder.getId());
+                return true;
+            }
+            if (System.currentTimeMillis() - head.sentAt > confirmTimeout) {
+                rewind("等待确认超时, orderId: " + head.voucherOrder.getId());
+                return true;
+            }
+            break;
+        }
+        //收到确认说明broker已经恢复，新的订单立即恢复直接发送，剩余的订单在后台补发
+        if (progressed && !brokerAvailable) {
+            brokerAvailable = true;
+            log.info("rabbitmq已恢复，新的订单直接发送, 待补发字节数: {}", writePosition - checkpoint);
+        }
+        return progressed;
+    }
+
+    /**
+     * 发送下一批订单，确认由回调异步标记
+     * @return 是否发送了订单
+     */
+    private boolean send() throws IOException {
+        if (brokerBlocked || System.currentTimeMillis() < retryAt) {
+            return false;
+        }
+        int room = Math.min(batchSize, maxInFlight - inFlight.size());
+        if (room <= 0) {
+            return false;
+        }
+        List<Entry> batch = fromJournal ? readJournal(room) : pollUnsent(room);
+        if (batch.isEmpty()) {
+            return false;
+        }
+        try {
+            rabbitTemplate.invoke(operations -> {
+                for (Entry entry : batch) {
+                    CorrelationData correlationData = new CorrelationData(entry.voucherOrder.getId().toString());
+                    correlationData.getFuture().addCallback(
+                            confirm -> onConfirm(entry, confirm != null && confirm.isAck()
+                                    && correlationData.getReturnedMessage() == null),
+                            e -> onConfirm(entry, false));
+                    entry.sentAt = System.currentTimeMillis();
+                    operations.convertAndSend(RabbitMQConstants.ORDER_EXCHANGE, RabbitMQConstants.ORDER_ROUTING_KEY,
+                            entry.voucherOrder, OrderPublisher.timestamp(entry.timestamp), correlationData);
+                }
+                return null;
+            });
+        } catch (AmqpException e) {
+            rewind("发送订单到rabbitmq失败: " + e.getMessage());
+            return true;
+        }
+        inFlight.addAll(batch);
+        sendPosition = batch.get(batch.size() - 1).end;
+        return true;
+    }
+
+    private void onConfirm(Entry entry, boolean ack) {
+        entry.state = ack ? Entry.ACKED : Entry.NACKED;
+        LockSupport.unpark(writer);
+    }
+
+    private List<Entry> pollUnsent(int max) {
+        List<Entry> batch = new ArrayList<>(Math.min(max, unsent.size()));
+        Entry entry;
+        while (batch.size() < max && (entry = unsent.pollFirst()) != null) {
+            batch.add(entry);
+        }
+        return batch;
+    }
+
+    /**
+     * 从sendPosition开始读取日志中的订单，读到日志末尾后恢复从内存发送
+     */
+    private List<Entry> readJournal(int max) throws IOException {
+        List<Entry> batch = new ArrayList<>(max);
+        long end = writePosition;
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = sendPosition;
+        while (batch.size() < max && position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = journal.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            int lineStart = 0;
+            for (int i = 0; i < read && batch.size() < max; i++) {
+                if (bytes[i] != '\n') {
+                    continue;
+                }
+                String[] fields = new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8).split(",");
+                VoucherOrder voucherOrder = new VoucherOrder();
+                voucherOrder.setId(Long.valueOf(fields[0]));
+                voucherOrder.setUserId(Long.valueOf(fields[1]));
+                voucherOrder.setVoucherId(Long.valueOf(fields[2]));
+                Entry entry = new Entry(voucherOrder, Long.parseLong(fields[3]));
+                entry.end = position + i + 1;
+                batch.add(entry);
+                replayed.increment();
+                lineStart = i + 1;
+            }
+            position += lineStart;
+        }
+        if (position >= end) {
+            fromJournal = false;
+        }
+        return batch;
+    }
+
+    /**
+     * 发送失败，放弃所有未结算的订单，间隔retryInterval后从检查点开始重新读取日志发送
+     * 放弃的订单之后再收到的确认会被忽略
+     */
+    private void rewind(String reason) {
+        publishFailures.increment();
+        brokerAvailable = false;
+        inFlight.clear();
+        unsent.clear();
+        sendPosition = checkpoint;
+        fromJournal = sendPosition < writePosition;
+        retryAt = System.currentTimeMillis() + retryInterval;
+        log.warn("{}，{}毫秒后从检查点重新发送, 待补发字节数: {}", reason, retryInterval, writePosition - checkpoint);
+    }
+
+    private void advance(long position) throws IOException {
+        checkpoint = position;
+        if (position - savedCheckpoint >= CHECKPOINT_BYTES) {
+            saveCheckpoint();
+        }
+    }
+
+    /**
+     * 没有待发送的订单时清空日志
+     */
+    private void compact() throws IOException {
+        if (!inbox.isEmpty() || !inFlight.isEmpty() || checkpoint != writePosition || writePosition == 0) {
+            return;
+        }
+        journal.truncate(0);
+        writePosition = 0;
+        checkpoint = 0;
+        sendPosition = 0;
+        fromJournal = false;
+        saveCheckpoint();
+        brokerAvailable = true;
+        log.info("本地订单队列已全部发送到rabbitmq");
+    }
+
+    /**
+     * 保存检查点，由写线程和关闭时的线程调用
+     */
+    private void saveCheckpoint() throws IOException {
+        synchronized (checkpointFile) {
+            long current = checkpoint;
+            if (current == savedCheckpoint) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, current);
+            while (buffer.hasRemaining()) {
+                checkpointFile.write(buffer, buffer.position());
+            }
+            checkpointFile.force(false);
+            savedCheckpoint = current;
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (checkpointFile.size() < Long.BYTES) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        while (buffer.hasRemaining()) {
+            if (checkpointFile.read(buffer, buffer.position()) < 0) {
+                return 0;
+            }
+        }
+        return buffer.getLong(0);
+    }
+
+    /**
+     * 日志中完整记录的长度，即最后一个换行符之后的位置
+     */
+    private static long completeLength(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long end = channel.size();
+        while (end > 0) {
+            int length = (int) Math.min(buffer.capacity(), end);
+            buffer.clear().limit(length);
+            channel.read(buffer, end - length);
+            for (int i = length - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return end - length + i + 1;
+                }
+            }
+            end -= length;
+        }
+        return 0;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("brokerAvailable", brokerAvailable);
+        stats.put("brokerBlocked", brokerBlocked);
+        stats.put("buffered", inbox.size());
+        stats.put("capacity", inbox.capacity());
+        stats.put("journalBacklogBytes", writePosition - checkpoint);
+        stats.put("accepted", accepted.sum());
+        stats.put("inboxFull", inboxFull.sum());
+        stats.put("overflowed", overflowed.sum());
+        stats.put("confirmed", confirmed.sum());
+        stats.put("replayed", replayed.sum());
+        stats.put("publishFailures", publishFailures.sum());
+        return stats;
+    }
+
+    private static final class Entry {
+        private static final int SENT = 0;
+        private static final int ACKED = 1;
+        private static final int NACKED = 2;
+
+        private final VoucherOrder voucherOrder;
+        private final long timestamp;
+        /**
+         * 该订单在日志中的结束位置，确认后作为检查点，由写线程设置
+         */
+        private long end;
+        /**
+         * 最近一次发送的时间，由写线程设置
+         */
+        private long sentAt;
+        /**
+         * 确认结果，由确认回调设置
+         */
+        private volatile int state = SENT;
+
+        private Entry(VoucherOrder voucherOrder, long timestamp) {
+            this.voucherOrder = voucherOrder;
+            this.timestamp = timestamp;
+        }
+    }
+}
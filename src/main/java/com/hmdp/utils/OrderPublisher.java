@@ -0,0 +1,313 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 订单消息的异步发送，使用correlated publisher confirms
+ * 1.请求线程申请发送窗口中的一个名额，订单放入待发送队列后立即返回；窗口已满时短暂等待名额，仍然没有名额时由调用方写入本地队列，
+ *   窗口已满只说明确认暂时跟不上，不把broker标记为不可用
+ * 2.发送线程把待发送的订单攒成一批，在同一个channel上连续发送（rabbitTemplate.invoke），每条消息带CorrelationData
+ * 3.broker确认后归还名额；被拒绝（nack）时重新放入待发送队列，超过重试次数、超时未确认或者连接失败时交给本地队列，
+ *   并把broker标记为不可用，之后的订单直接写入本地队列，直到本地队列全部发送完成
+ * 每个订单只结算一次，交给本地队列后再收到的确认会被忽略，重复发送的订单由消费者按订单id去重
+ */
+@Slf4j
+@Component
+public class OrderPublisher {
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @Resource
+    private OrderFallbackQueue orderFallbackQueue;
+
+    /**
+     * 每批最多发送的消息数
+     */
+    @Value("${hmdp.order.publisher.batch-size:50}")
+    private int batchSize;
+
+    /**
+     * 已发送未确认的最大消息数
+     */
+    @Value("${hmdp.order.publisher.max-in-flight:10000}")
+    private int maxInFlight;
+
+    /**
+     * 被broker拒绝后的最大重试次数
+     */
+    @Value("${hmdp.order.publisher.max-retries:3}")
+    private int maxRetries;
+
+    /**
+     * 等待确认的最长时间（毫秒），超时视为拒绝
+     */
+    @Value("${hmdp.order.publisher.confirm-timeout:5000}")
+    private long confirmTimeout;
+
+    /**
+     * 窗口已满时等待名额的最长时间（毫秒）
+     */
+    @Value("${hmdp.order.publisher.acquire-timeout:20}")
+    private long acquireTimeout;
+
+    private Semaphore window;
+
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 已经占用名额、还没有结算的订单
+     */
+    private final Set<Pending> unsettled = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running = true;
+
+    private Thread sender;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder confirmed = new LongAdder();
+    private final LongAdder nacked = new LongAdder();
+    private final LongAdder handedOff = new LongAdder();
+    private final LongAdder windowFull = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        window = new Semaphore(maxInFlight);
+        sender = new Thread(this::send, "order-publisher");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        LockSupport.unpark(sender);
+        try {
+            sender.join(TimeUnit.SECONDS.toMillis(5));
+            //等待已发送的消息确认，仍未确认的写入本地日志，重启后补发
+            long deadline = System.currentTimeMillis() + confirmTimeout;
+            while (!unsettled.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Pending pending : unsettled) {
+            handOff(pending);
+        }
+    }
+
+    /**
+     * 异步发送订单
+     * @return 等待后窗口仍然已满时返回false，订单没有被接收
+     */
+    public boolean publish(VoucherOrder voucherOrder) {
+        if (!running || !acquire()) {
+            windowFull.increment();
+            return false;
+        }
+        Pending pending = new Pending(voucherOrder, System.currentTimeMillis());
+        unsettled.add(pending);
+        queue.offer(pending);
+        accepted.increment();
+        LockSupport.unpark(sender);
+        return true;
+    }
+
+    private boolean acquire() {
+        if (window.tryAcquire()) {
+            return true;
+        }
+        try {
+            return window.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void send() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            //1.取出待发送的订单，有多少取多少，最多batchSize条
+            Pending next;
+            while (batch.size() < batchSize && (next = queue.poll()) != null) {
+                if (!next.settled.get()) {
+                    batch.add(next);
+                }
+            }
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            //2.整批在同一个channel上发送，确认异步到达
+            try {
+                rabbitTemplate.invoke(operations -> {
+                    for (Pending pending : batch) {
+                        CorrelationData correlationData = new CorrelationData(pending.voucherOrder.getId().toString());
+                        correlationData.getFuture().addCallback(
+                                confirm -> onConfirm(pending, confirm != null && confirm.isAck()
+                                                && correlationData.getReturnedMessage() == null,
+                                        confirm == null ? null : returnedOr(correlationData, confirm.getReason())),
+                                e -> onConfirm(pending, false, e.getMessage()));
+                        pending.sentAt = System.currentTimeMillis();
+                        operations.convertAndSend(RabbitMQConstants.ORDER_EXCHANGE, RabbitMQConstants.ORDER_ROUTING_KEY,
+                                pending.voucherOrder, timestamp(pending.timestamp), correlationData);
+                    }
+                    return null;
+                });
+                batches.increment();
+            } catch (AmqpException e) {
+                //3.broker不可用，整批交给本地队列，已经发出的消息可能重复
+                log.warn("批量发送订单失败，交给本地队列, 消息数: {}", batch.size(), e);
+                batch.forEach(this::handOff);
+            } catch (Exception e) {
+                log.error("批量发送订单异常, 消息数: {}", batch.size(), e);
+                batch.forEach(this::handOff);
+            }
+            batch.clear();
+        }
+    }
+
+    private void onConfirm(Pending pending, boolean ack, String reason) {
+        if (ack) {
+            if (settle(pending)) {
+                confirmed.increment();
+            }
+            return;
+        }
+        nacked.increment();
+        if (pending.settled.get()) {
+            return;
+        }
+        //被拒绝，重新发送或者交给本地队列
+        if (pending.attempts < maxRetries && running) {
+            pending.attempts++;
+            log.warn("订单消息被拒绝，重新发送, orderId: {}, attempt: {}, reason: {}",
+                    pending.voucherOrder.getId(), pending.attempts, reason);
+            queue.offer(pending);
+            LockSupport.unpark(sender);
+            return;
+        }
+        log.error("订单消息多次被拒绝，交给本地队列, orderId: {}, reason: {}", pending.voucherOrder.getId(), reason);
+        handOff(pending);
+    }
+
+    /**
+     * 超时未确认的订单视为被拒绝
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.publisher.confirm-timeout:5000}")
+    public void expireUnconfirmed() {
+        long deadline = System.currentTimeMillis() - confirmTimeout;
+        for (Pending pending : unsettled) {
+            long sentAt = pending.sentAt;
+            if (sentAt > 0 && sentAt < deadline) {
+                pending.sentAt = 0;
+                onConfirm(pending, false, "确认超时");
+            }
+        }
+    }
+
+    /**
+     * 发送失败的订单交给本地队列，broker在本地队列发送完成之前视为不可用
+     */
+    private void handOff(Pending pending) {
+        if (!settle(pending)) {
+            return;
+        }
+        orderFallbackQueue.markBrokerUnavailable();
+        try {
+            orderFallbackQueue.offer(pending.voucherOrder);
+            handedOff.increment();
+        } catch (Exception e) {
+            log.error("订单写入本地队列失败, orderId: {}", pending.voucherOrder.getId(), e);
+        }
+    }
+
+    /**
+     * 结算一个订单并归还名额，只有第一次结算生效
+     */
+    private boolean settle(Pending pending) {
+        if (!pending.settled.compareAndSet(false, true)) {
+            return false;
+        }
+        unsettled.remove(pending);
+        window.release();
+        return true;
+    }
+
+    /**
+     * 无法路由的消息虽然被确认，也视为拒绝
+     */
+    private static String returnedOr(CorrelationData correlationData, String reason) {
+        return correlationData.getReturnedMessage() != null ? "消息无法路由，已被退回" : reason;
+    }
+
+    /**
+     * 带上订单进入窗口的时间，消费者据此统计消费延迟
+     */
+    static MessagePostProcessor timestamp(long timestamp) {
+        return message -> {
+            message.getMessageProperties().setTimestamp(new Date(timestamp));
+            return message;
+        };
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("inFlight", maxInFlight - window.availablePermits());
+        stats.put("maxInFlight", maxInFlight);
+        stats.put("accepted", accepted.sum());
+        stats.put("confirmed", confirmed.sum());
+        stats.put("nacked", nacked.sum());
+        stats.put("handedOff", handedOff.sum());
+        stats.put("windowFull", windowFull.sum());
+        stats.put("batches", batches.sum());
+        return stats;
+    }
+
+    private static final class Pending {
+        private final VoucherOrder voucherOrder;
+        private final long timestamp;
+        private final AtomicBoolean settled = new AtomicBoolean();
+        private volatile int attempts;
+        /**
+         * 最近一次发送的时间，0表示还没有发送
+         */
+        private volatile long sentAt;
+
+        private Pending(VoucherOrder voucherOrder, long timestamp) {
+            this.voucherOrder = voucherOrder;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.CollUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_ID_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_TTL;
+
+/**
+ * 订单的异步创建状态，保存在redis的hash中：status状态，reason失败原因，userId所属用户
+ * 1.秒杀成功后写入PENDING（HSETNX，不覆盖消费者已经写入的结果）
+ * 2.消费者在事务提交后写入CREATED或FAILED，并通过频道通知所有节点
+ * 3.查询状态时可以长轮询：订单仍在处理中时挂起请求，收到通知或超时后返回
+ * 4.同时记录优惠券id、用户id到订单id的映射（order:id:{voucherId}:{userId}），对账重新发送订单时沿用原来的订单id
+ */
+@Slf4j
+@Component
+public class OrderStatusRegistry {
+
+    public static final String PENDING = "PENDING";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 长轮询的最长等待时间（毫秒）
+     */
+    @Value("${hmdp.order.status.poll-timeout:10000}")
+    private long pollTimeout;
+
+    /**
+     * 订单id -> 本节点上等待该订单状态的请求
+     */
+    private final Map<Long, Queue<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * 秒杀成功，订单等待创建
+     */
+    public void markPending(Long orderId, Long userId, Long voucherId) {
+        String key = ORDER_STATUS_KEY + orderId;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.hSetNX(key, "status", PENDING);
+            stringRedisConnection.hMSet(key, owner(userId, voucherId));
+            stringRedisConnection.expire(key, TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL));
+            stringRedisConnection.setEx(orderIdKey(voucherId, userId),
+                    TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL), orderId.toString());
+            return null;
+        });
+    }
+
+    /**
+     * 查询用户秒杀该优惠券时分配的订单id，映射已经过期时返回null
+     */
+    public Long findOrderId(Long voucherId, Long userId) {
+        String orderId = stringRedisTemplate.opsForValue().get(orderIdKey(voucherId, userId));
+        return orderId == null ? null : Long.valueOf(orderId);
+    }
+
+    private static String orderIdKey(Long voucherId, Long userId) {
+        return ORDER_ID_KEY + voucherId + ":" + userId;
+    }
+
+    /**
+     * 订单创建成功，有事务时在提交后写入
+     */
+    public void markCreated(Collection<VoucherOrder> orders) {
+        complete(orders, CREATED, null);
+    }
+
+    /**
+     * 订单创建失败，有事务时在提交后写入
+     */
+    public void markFailed(Collection<VoucherOrder> orders, String reason) {
+        complete(orders, FAILED, reason);
+    }
+
+    private void complete(Collection<VoucherOrder> orders, String status, String reason) {
+        if (CollUtil.isEmpty(orders)) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    write(orders, status, reason);
+                }
+            });
+        } else {
+            write(orders, status, reason);
+        }
+    }
+
+    private void write(Collection<VoucherOrder> orders, String status, String reason) {
+        try {
+            //1.批量写入状态
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    String key = ORDER_STATUS_KEY + order.getId();
+                    Map<String, String> fields = owner(order.getUserId(), order.getVoucherId());
+                    fields.put("status", status);
+                    if (reason != null) {
+                        fields.put("reason", reason);
+                    }
+                    stringRedisConnection.hMSet(key, fields);
+                    stringRedisConnection.expire(key, TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL));
+                }
+                return null;
+            });
+            //2.通知所有节点，一条消息包含多个以换行分隔的订单id
+            String ids = orders.stream().map(order -> order.getId().toString()).collect(Collectors.joining("\n"));
+            stringRedisTemplate.convertAndSend(ORDER_STATUS_CHANNEL, ids);
+        } catch (Exception e) {
+            //订单已经处理，状态写入失败时查询方会看到PENDING直到过期
+            log.error("写入订单状态失败, status: {}, 订单数: {}", status, orders.size(), e);
+        }
+    }
+
+    private static Map<String, String> owner(Long userId, Long voucherId) {
+        Map<String, String> fields = new HashMap<>(4);
+        fields.put("userId", userId.toString());
+        fields.put("voucherId", voucherId.toString());
+        return fields;
+    }
+
+    /**
+     * 查询订单状态，只能查询自己的订单
+     * @param wait 订单仍在处理中时是否等待结果
+     */
+    public DeferredResult<Result> query(Long orderId, Long userId, boolean wait) {
+        DeferredResult<Result> result = new DeferredResult<>(pollTimeout);
+        //1.查询当前状态
+        Map<Object, Object> status = stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+        if (status.isEmpty() || !userId.toString().equals(status.get("userId"))) {
+            result.setResult(Result.fail("订单不存在"));
+            return result;
+        }
+        //2.已经完成或者不需要等待，直接返回
+        if (!wait || !PENDING.equals(status.get("status"))) {
+            result.setResult(Result.ok(view(orderId, status)));
+            return result;
+        }
+        //3.挂起请求，收到状态通知或者超时后返回
+        Queue<DeferredResult<Result>> queue = waiters.computeIfAbsent(orderId, id -> new ConcurrentLinkedQueue<>());
+        queue.add(result);
+        result.onTimeout(() -> result.setResult(Result.ok(view(orderId,
+                stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId)))));
+        result.onCompletion(() -> {
+            queue.remove(result);
+            waiters.computeIfPresent(orderId, (id, q) -> q.isEmpty() ? null : q);
+        });
+        //4.再查询一次，避免挂起之前状态已经变化
+        status = stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+        if (!PENDING.equals(status.get("status"))) {
+            result.setResult(Result.ok(view(orderId, status)));
+        }
+        return result;
+    }
+
+    /**
+     * 收到订单状态通知，唤醒本节点上等待这些订单的请求
+     */
+    public void onStatusChange(String ids) {
+        for (String id : ids.split("\n")) {
+            Long orderId = Long.valueOf(id);
+            Queue<DeferredResult<Result>> queue = waiters.get(orderId);
+            if (queue == null || queue.isEmpty()) {
+                continue;
+            }
+            Map<Object, Object> status = stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+            if (PENDING.equals(status.get("status"))) {
+                continue;
+            }
+            Result view = Result.ok(view(orderId, status));
+            for (DeferredResult<Result> result : queue) {
+                result.setResult(view);
+            }
+        }
+    }
+
+    private static Map<String, Object> view(Long orderId, Map<Object, Object> status) {
+        if (status.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> view = new LinkedHashMap<>();
+        view.put("orderId", orderId);
+        view.put("status", status.get("status"));
+        if (status.containsKey("reason")) {
+            view.put("reason", status.get("reason"));
+        }
+        return view;
+    }
+
+    public int getWaiting() {
+        return waiters.values().stream().mapToInt(Queue::size).sum();
+    }
+}
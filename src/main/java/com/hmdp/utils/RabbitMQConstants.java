@@ -7,5 +7,24 @@ public class RabbitMQConstants {
 
     public static final String ORDER_ROUTING_KEY = "voucher.order";
 
+    /**
+     * 订单消息的重试队列前缀，后面是延迟时间，如voucher.order.retry.1000ms
+     */
+    public static final String ORDER_RETRY_QUEUE_PREFIX = "voucher.order.retry.";
+    /**
+     * 订单消息的死信队列
+     */
+    public static final String ORDER_DLQ = "voucher.order.dlq";
+    /**
+     * 订单消息已经重试的次数
+     */
+    public static final String ORDER_ATTEMPT_HEADER = "x-order-attempt";
+
+    /**
+     * hmdp.order.transport的取值
+     */
+    public static final String ORDER_TRANSPORT_RABBITMQ = "rabbitmq";
+    public static final String ORDER_TRANSPORT_STREAM = "stream";
+
 
 }
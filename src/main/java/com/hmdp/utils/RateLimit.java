@@ -0,0 +1,43 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 接口限流，由RateLimitInterceptor在进入controller之前检查
+ * 1.用户级：本地令牌桶，每个用户每秒userPermits个请求，允许userBurst个突发请求
+ * 2.优惠券级：redis滑动窗口，同一优惠券在windowMillis内最多voucherLimit个请求，voucherLimit不大于0时不限制
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimit {
+
+    /**
+     * 每个用户每秒允许的请求数
+     */
+    double userPermits() default 5;
+
+    /**
+     * 每个用户允许的突发请求数
+     */
+    int userBurst() default 10;
+
+    /**
+     * 优惠券id所在的路径变量名
+     */
+    String voucherVariable() default "id";
+
+    /**
+     * 同一优惠券在窗口内允许的请求数
+     */
+    int voucherLimit() default 0;
+
+    /**
+     * 优惠券限流的滑动窗口（毫秒）
+     */
+    long windowMillis() default 1000;
+}
@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 按@RateLimit限流，先检查本地的用户级限流，通过后再检查redis的优惠券级限流
+ * 优惠券在本地已标记售罄时跳过优惠券级限流，由业务直接在本地拒绝，不再访问redis
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private final RateLimiter rateLimiter;
+
+    private final SoldOutRegistry soldOutRegistry;
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, SoldOutRegistry soldOutRegistry) {
+        this.rateLimiter = rateLimiter;
+        this.soldOutRegistry = soldOutRegistry;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //1.判断是否需要限流
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        RateLimit rateLimit = ((HandlerMethod) handler).getMethodAnnotation(RateLimit.class);
+        if (rateLimit == null) {
+            return true;
+        }
+        //2.用户级限流，未登录时按ip限流
+        UserDTO user = UserHolder.getUser();
+        String userKey = user != null ? user.getId().toString() : request.getRemoteAddr();
+        if (!rateLimiter.tryAcquireUser(userKey, rateLimit.userPermits(), rateLimit.userBurst())) {
+            return reject(response);
+        }
+        //3.优惠券级限流
+        if (rateLimit.voucherLimit() > 0) {
+            Long voucherId = voucherIdOf(request, rateLimit.voucherVariable());
+            if (voucherId != null && !soldOutRegistry.isMarked(voucherId)
+                    && !rateLimiter.tryAcquireVoucher(voucherId, rateLimit.voucherLimit(), rateLimit.windowMillis())) {
+                return reject(response);
+            }
+        }
+        rateLimiter.recordPassed();
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Long voucherIdOf(HttpServletRequest request, String variable) {
+        Map<String, String> variables = (Map<String, String>)
+                request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String value = variables == null ? null : variables.get(variable);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private boolean reject(HttpServletResponse response) throws Exception {
+        //设置状态码，返回提示信息
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("请求过于频繁，请稍后再试")));
+        return false;
+    }
+}
@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_VOUCHER_KEY;
+
+/**
+ * 两级限流
+ * 1.用户级：本地令牌桶，按GCRA算法只保存一个理论到达时间，CAS更新，不加锁也不访问redis，在本地拒绝大部分刷单请求
+ * 2.优惠券级：redis滑动窗口，所有节点共享同一优惠券的请求配额
+ */
+@Slf4j
+@Component
+public class RateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final String MEMBER_PREFIX = UUID.randomUUID().toString(true) + "-";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 用户 -> 理论到达时间（纳秒）
+     */
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong memberSequence = new AtomicLong();
+
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder userRejected = new LongAdder();
+    private final LongAdder voucherRejected = new LongAdder();
+    private final LongAdder redisFailed = new LongAdder();
+
+    /**
+     * 用户级限流
+     * @param permitsPerSecond 每秒允许的请求数
+     * @param burst 允许的突发请求数
+     * @return 是否放行
+     */
+    public boolean tryAcquireUser(String user, double permitsPerSecond, int burst) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        long tolerance = interval * (Math.max(burst, 1) - 1);
+        AtomicLong tat = buckets.computeIfAbsent(user, key -> new AtomicLong(Long.MIN_VALUE));
+        while (true) {
+            long now = System.nanoTime();
+            long old = tat.get();
+            //1.理论到达时间早于当前时间，说明令牌已满
+            long start = old == Long.MIN_VALUE || old - now < 0 ? now : old;
+            //2.超前太多，说明令牌已用完
+            if (start - now > tolerance) {
+                userRejected.increment();
+                return false;
+            }
+            //3.消耗一个令牌
+            if (tat.compareAndSet(old, start + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 优惠券级限流，redis不可用时放行，由秒杀脚本自身的失败处理
+     * @param limit 窗口内允许的请求数
+     * @param windowMillis 窗口大小（毫秒）
+     * @return 是否放行
+     */
+    public boolean tryAcquireVoucher(Long voucherId, int limit, long windowMillis) {
+        Long result;
+        try {
+            result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT,
+                    Collections.singletonList(RATE_LIMIT_VOUCHER_KEY + voucherId),
+                    String.valueOf(windowMillis), String.valueOf(limit),
+                    MEMBER_PREFIX + memberSequence.incrementAndGet());
+        } catch (Exception e) {
+            redisFailed.increment();
+            log.warn("优惠券限流失败, voucherId: {}", voucherId, e);
+            return true;
+        }
+        if (result == null || result == 0L) {
+            voucherRejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 记录通过两级限流的请求
+     */
+    public void recordPassed() {
+        passed.increment();
+    }
+
+    /**
+     * 清理令牌已满的用户，令牌已满与第一次请求等价
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void evictIdleBuckets() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(tat -> tat.get() - now < 0);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("passed", passed.sum());
+        stats.put("userRejected", userRejected.sum());
+        stats.put("voucherRejected", voucherRejected.sum());
+        stats.put("redisFailed", redisFailed.sum());
+        stats.put("trackedUsers", buckets.size());
+        return stats;
+    }
+}
@@ -15,12 +15,45 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TYPE_TTL = 30L;
 
-    public static final String LOCK_SHOP_KEY = "lock:shop:";
-    public static final Long LOCK_SHOP_TTL = 10L;
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
 
-    public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final Long CACHE_VOUCHER_TTL = 1L;
+    public static final String CACHE_VOUCHER_KEY = "cache:voucher:shop:";
 
-    public static final Long SECKILL_STOCK_TTL = 36000L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_BLOOM_ADD_CHANNEL = "cache:bloom:add";
+
+    public static final String LOCK_SHOP_KEY = "lock:shop:";
+    public static final Long LOCK_SHOP_TTL = 10L;
+    public static final Long CACHE_LOCK_TTL = 10L;
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile";
+
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_RECONCILE_ROUND_KEY = "seckill:reconcile:round";
+    public static final String SECKILL_RECONCILE_SUSPECTS_KEY = "seckill:reconcile:suspects";
+    public static final String ORDER_STREAM_KEY = "stream.orders:";
+    public static final String ORDER_STREAM_REGISTRY_KEY = "stream.orders.keys";
+    public static final String ORDER_STREAM_GROUP = "g1";
+    public static final String ORDER_STREAM_DLQ_KEY = "stream.orders.dlq";
+
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_TTL = 30L;
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
+    public static final String ORDER_ID_KEY = "order:id:";
+
+    public static final String RATE_LIMIT_VOUCHER_KEY = "limit:voucher:";
+
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last";
+
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_STOCK_RESET_CHANNEL = "seckill:stock-reset";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
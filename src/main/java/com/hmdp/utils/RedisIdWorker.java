@@ -1,42 +1,259 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局唯一id：31位时间戳（秒） + 32位当天的序列号
+ * 1.号段模式（segment，默认）：每个节点通过INCRBY一次预留step个序列号，之后在内存中无锁发放；
+ *   当前号段用掉一部分后异步预留下一个号段（双缓冲），当前号段用完时直接切换，发放过程不再访问redis
+ * 2.雪花模式（snowflake）：启动时从redis租用workerId，之后由时钟、workerId和序列号生成，见{@link SnowflakeIdWorker}
+ */
+@Slf4j
 @Component
 public class RedisIdWorker {
 
     /**
      * 开始时间戳
      */
-    private static final long BEGIN_TIMESTAMP  = 1640995200L;
+    static final long BEGIN_TIMESTAMP  = 1640995200L;
 
     /**
      * 系列号位数
      */
-    private static final int COUNT_BITS  = 32;
+    static final int COUNT_BITS  = 32;
+
+    public static final String MODE_SEGMENT = "segment";
+    public static final String MODE_SNOWFLAKE = "snowflake";
+
+    private static final long SECONDS_PER_DAY = TimeUnit.DAYS.toSeconds(1);
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 每个号段的序列号数量
+     */
+    private final long step;
+
+    /**
+     * 当前号段发放的比例超过该值时预留下一个号段
+     */
+    private final double prefetchRatio;
+
+    /**
+     * 业务前缀 -> 号段缓冲
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    /**
+     * id的生成方式：segment或snowflake
+     */
+    @Value("${hmdp.id.mode:segment}")
+    private String mode = MODE_SEGMENT;
+
+    /**
+     * workerId的租约有效期（毫秒）
+     */
+    @Value("${hmdp.id.snowflake.lease-ttl:30000}")
+    private long leaseTtl;
+
+    /**
+     * 允许的时钟回拨秒数
+     */
+    @Value("${hmdp.id.snowflake.max-backward:5}")
+    private long maxBackward;
+
+    private volatile SnowflakeIdWorker snowflake;
+
+    private WorkerIdLease workerIdLease;
+
+    private final ExecutorService prefetchExecutor = new ThreadPoolExecutor(1, 1,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            new NamedThreadFactory("id-segment-", true));
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.segment.step:1000}") long step,
+                         @Value("${hmdp.id.segment.prefetch-ratio:0.2}") double prefetchRatio) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.step = Math.max(step, 1);
+        this.prefetchRatio = prefetchRatio;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (MODE_SNOWFLAKE.equals(mode)) {
+            SnowflakeIdWorker worker = new SnowflakeIdWorker(maxBackward);
+            workerIdLease = new WorkerIdLease(stringRedisTemplate, worker, leaseTtl);
+            workerIdLease.start();
+            snowflake = worker;
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+        if (workerIdLease != null) {
+            workerIdLease.stop();
+        }
     }
 
     public long nextId(String keyPrefix){
-        //1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
-        //2.生成序列号
-        //2.1获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
-        //3.拼接并返回
-        return timestamp << COUNT_BITS | count;
+        //雪花模式，id全局唯一，与业务前缀无关
+        SnowflakeIdWorker worker = snowflake;
+        if (worker != null) {
+            return worker.nextId();
+        }
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            //1.生成时间戳
+            long nowSecond = nowSecond();
+            long timestamp = nowSecond - BEGIN_TIMESTAMP;
+            //2.从当前号段获取序列号，号段属于当天时才能使用
+            long day = nowSecond / SECONDS_PER_DAY;
+            Segment segment = buffer.current;
+            if (segment != null && segment.day > day) {
+                //其它线程已经切换到第二天的号段，重新获取时间
+                continue;
+            }
+            if (segment != null && segment.day == day) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.max) {
+                    //2.1发放比例超过阈值时异步预留下一个号段
+                    if (count == segment.prefetchAt) {
+                        buffer.prefetch(segment);
+                    }
+                    //3.拼接并返回
+                    return timestamp << COUNT_BITS | count;
+                }
+            }
+            //2.2号段用完或日期变化，切换号段
+            buffer.switchSegment(segment, day);
+        }
+    }
+
+    /**
+     * 当前时间的秒数，与LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)一致
+     */
+    static long nowSecond() {
+        long millis = System.currentTimeMillis();
+        int offset = ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds();
+        return millis / 1000 + offset;
+    }
+
+    /**
+     * 一个号段：当天的序列号[cursor, max]
+     */
+    private static final class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long max;
+        private final long prefetchAt;
+
+        private Segment(long day, long min, long max, long prefetchAt) {
+            this.day = day;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 一个业务前缀的双缓冲：正在发放的号段和预留好的下一个号段
+     */
+    private final class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+        /**
+         * 缓存的日期和对应的key，日期变化时才重新格式化
+         */
+        private long cachedDay = -1;
+        private String cachedKey;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private void prefetch(Segment segment) {
+            if (next != null || !loading.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                prefetchExecutor.execute(() -> {
+                    try {
+                        Segment loaded = load(segment.day);
+                        synchronized (this) {
+                            if (current == segment) {
+                                next = loaded;
+                            }
+                        }
+                    } catch (Exception e) {
+                        //预留失败时，当前号段用完后同步预留
+                        log.warn("预留id号段失败, keyPrefix: {}", keyPrefix, e);
+                    } finally {
+                        loading.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                loading.set(false);
+                throw e;
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, long day) {
+            if (current != exhausted) {
+                //其它线程已经切换
+                return;
+            }
+            Segment candidate = next;
+            next = null;
+            if (candidate == null || candidate.day != day) {
+                candidate = load(day);
+            }
+            current = candidate;
+        }
+
+        /**
+         * INCRBY预留当天的一个号段
+         */
+        private Segment load(long day) {
+            long max = stringRedisTemplate.opsForValue().increment(keyOf(day), step);
+            long min = max - step + 1;
+            return new Segment(day, min, max, min + (long) (step * prefetchRatio));
+        }
+
+        private synchronized String keyOf(long day) {
+            if (day != cachedDay) {
+                //获取当前日期，精确到天
+                String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+                cachedKey = "icr:" + keyPrefix + ":" + date;
+                cachedDay = day;
+            }
+            return cachedKey;
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 有界环形队列，多生产者单消费者，读写都不加锁
+ * 容量向上取整为2的幂（至少为2），位置对容量取模时只需要一次与运算
+ * 每个槽位带一个序号：序号等于写入位置时槽位空闲，生产者CAS推进tail抢到槽位，写入元素后把序号改为位置+1发布元素；
+ * 消费者看到序号等于读取位置+1时读取元素，清空后把序号改为位置+容量，槽位留给下一圈的生产者
+ */
+public class RingBuffer<E> {
+
+    private final Object[] items;
+
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    /**
+     * 下一个读取的位置，只由消费者修改
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * 下一个写入的位置，生产者通过CAS竞争
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    public RingBuffer(int capacity) {
+        //容量为1时发布后的序号与下一个写入位置相同，无法区分已满和空闲
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.items = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * 写入一个元素，可以由多个线程同时调用
+     * @return 队列已满时返回false
+     */
+    public boolean offer(E item) {
+        while (true) {
+            long t = tail.get();
+            int index = (int) t & mask;
+            long diff = sequences.get(index) - t;
+            if (diff == 0) {
+                //1.槽位空闲，抢到位置后写入元素并发布
+                if (tail.compareAndSet(t, t + 1)) {
+                    items[index] = item;
+                    sequences.lazySet(index, t + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                //2.槽位还没有被消费者清空，队列已满
+                return false;
+            }
+            //3.其它生产者已经抢到该位置，重新读取tail
+        }
+    }
+
+    /**
+     * 移除并返回队头元素，只能由消费者调用
+     * 生产者已经抢到位置但还没有发布元素时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        int index = (int) h & mask;
+        if (sequences.get(index) != h + 1) {
+            return null;
+        }
+        E item = (E) items[index];
+        items[index] = null;
+        sequences.lazySet(index, h + items.length);
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+}
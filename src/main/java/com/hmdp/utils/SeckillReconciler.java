@@ -0,0 +1,370 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_RECONCILE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_ROUND_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_SUSPECTS_KEY;
+
+/**
+ * 对账：redis中已经登记购买资格的用户（seckill:order:{voucherId}），在tb_voucher_order中必须有对应的订单
+ * 订单消息丢失或者消费失败时两边不一致：redis已经扣减库存并登记用户，数据库却没有订单
+ * 1.SCAN遍历订单key，SSCAN分批读取用户，每批一次查询数据库，批次之间暂停，不会长时间占用redis
+ * 2.缺失的订单先记为疑似，超过宽限期（覆盖还在队列中的订单）仍然缺失时重新发送订单消息，沿用秒杀时分配的订单id
+ * 3.重新发送后再过一个宽限期仍然缺失，进行补偿：移除用户的购买资格，数据库还有库存时把库存归还到用户所在的分片并清除售罄标记，订单标记为失败
+ * 多个节点通过分布式锁保证同一时间只有一个节点在对账；轮次和疑似订单保存在redis中（seckill:reconcile:round、seckill:reconcile:suspects），
+ * 对账锁换到其它节点后宽限期继续计时，不会重新开始，也不会重复发送
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private OrderStatusRegistry orderStatusRegistry;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Value("${hmdp.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 宽限期（毫秒），订单缺失超过该时间才处理
+     */
+    @Value("${hmdp.seckill.reconcile.grace:300000}")
+    private long grace;
+
+    /**
+     * 每批读取的用户数
+     */
+    @Value("${hmdp.seckill.reconcile.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * 批次之间的暂停时间（毫秒）
+     */
+    @Value("${hmdp.seckill.reconcile.pause:50}")
+    private long pause;
+
+    private final AtomicLong round = new AtomicLong();
+    private final LongAdder scannedKeys = new LongAdder();
+    private final LongAdder scannedUsers = new LongAdder();
+    private final LongAdder resolved = new LongAdder();
+    private final LongAdder reenqueued = new LongAdder();
+    private final LongAdder compensated = new LongAdder();
+    private volatile long lastRunTime;
+    private volatile long lastRunMillis;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        //其它节点正在对账时跳过本轮，锁由看门狗续期，对账耗时较长也不会提前释放
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_RECONCILE_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            reconcileAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcileAll() {
+        long begin = System.currentTimeMillis();
+        round.incrementAndGet();
+        //轮次由各节点共享，疑似订单记录的是最近一次出现的轮次
+        Long current = stringRedisTemplate.opsForValue().increment(SECKILL_RECONCILE_ROUND_KEY);
+        if (current == null) {
+            return;
+        }
+        //1.SCAN遍历所有订单key
+        ScanOptions options = ScanOptions.scanOptions().match(SECKILL_ORDER_KEY + "*").count(100).build();
+        try (Cursor<byte[]> keys = stringRedisTemplate.executeWithStickyConnection(
+                (RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+            while (keys.hasNext()) {
+                String key = new String(keys.next(), StandardCharsets.UTF_8);
+                OrderKey orderKey = OrderKey.parse(key);
+                if (orderKey == null) {
+                    continue;
+                }
+                scannedKeys.increment();
+                reconcileKey(orderKey, current);
+            }
+            //2.本轮没有再次出现的疑似订单已经补上
+            removeResolved(current);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            log.error("秒杀对账失败", e);
+            return;
+        }
+        lastRunTime = begin;
+        lastRunMillis = System.currentTimeMillis() - begin;
+    }
+
+    /**
+     * SSCAN分批读取一个订单key中的用户
+     */
+    private void reconcileKey(OrderKey orderKey, long current) throws Exception {
+        ScanOptions options = ScanOptions.scanOptions().count(batchSize).build();
+        try (Cursor<String> members = stringRedisTemplate.opsForSet().scan(orderKey.key, options)) {
+            List<Long> userIds = new ArrayList<>(batchSize);
+            while (members.hasNext()) {
+                userIds.add(Long.valueOf(members.next()));
+                if (userIds.size() >= batchSize) {
+                    reconcileBatch(orderKey, userIds, current);
+                    userIds.clear();
+                    Thread.sleep(pause);
+                }
+            }
+            if (!userIds.isEmpty()) {
+                reconcileBatch(orderKey, userIds, current);
+            }
+        }
+    }
+
+    /**
+     * 一批用户一次查询数据库，找出缺失的订单，缺失订单的疑似状态一次读取、一次写回
+     */
+    private void reconcileBatch(OrderKey orderKey, List<Long> userIds, long current) {
+        scannedUsers.add(userIds.size());
+        Set<Long> ordered = new HashSet<>();
+        for (VoucherOrder order : voucherOrderService.query().select("user_id")
+                .eq("voucher_id", orderKey.voucherId).in("user_id", userIds).list()) {
+            ordered.add(order.getUserId());
+        }
+        List<Long> missing = new ArrayList<>();
+        List<Object> fields = new ArrayList<>();
+        for (Long userId : userIds) {
+            if (!ordered.contains(userId)) {
+                missing.add(userId);
+                fields.add(orderKey.voucherId + ":" + userId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(SECKILL_RECONCILE_SUSPECTS_KEY, fields);
+        long now = System.currentTimeMillis();
+        Map<String, String> updated = new HashMap<>();
+        List<Object> compensatedFields = new ArrayList<>();
+        for (int i = 0; i < missing.size(); i++) {
+            Long userId = missing.get(i);
+            String field = (String) fields.get(i);
+            Object value = values == null ? null : values.get(i);
+            Suspect suspect = value == null ? new Suspect(now, 0) : Suspect.parse((String) value);
+            suspect.round = current;
+            if (now - suspect.since >= grace) {
+                if (suspect.reenqueuedAt == 0) {
+                    reenqueue(orderKey, userId);
+                    suspect.reenqueuedAt = now;
+                } else if (now - suspect.reenqueuedAt >= grace) {
+                    compensate(orderKey, userId);
+                    compensatedFields.add(field);
+                    continue;
+                }
+            }
+            updated.put(field, suspect.toString());
+        }
+        if (!updated.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(SECKILL_RECONCILE_SUSPECTS_KEY, updated);
+        }
+        if (!compensatedFields.isEmpty()) {
+            stringRedisTemplate.opsForHash().delete(SECKILL_RECONCILE_SUSPECTS_KEY, compensatedFields.toArray());
+        }
+    }
+
+    /**
+     * HSCAN疑似订单，删除本轮没有再次出现的记录，每批删除一次
+     */
+    private void removeResolved(long current) throws Exception {
+        ScanOptions options = ScanOptions.scanOptions().count(batchSize).build();
+        List<Object> done = new ArrayList<>();
+        try (Cursor<Map.Entry<Object, Object>> entries =
+                     stringRedisTemplate.opsForHash().scan(SECKILL_RECONCILE_SUSPECTS_KEY, options)) {
+            while (entries.hasNext()) {
+                Map.Entry<Object, Object> entry = entries.next();
+                if (Suspect.parse((String) entry.getValue()).round != current) {
+                    done.add(entry.getKey());
+                }
+                if (done.size() >= batchSize) {
+                    deleteResolved(done);
+                }
+            }
+        }
+        deleteResolved(done);
+    }
+
+    private void deleteResolved(List<Object> fields) {
+        if (fields.isEmpty()) {
+            return;
+        }
+        Long removed = stringRedisTemplate.opsForHash().delete(SECKILL_RECONCILE_SUSPECTS_KEY, fields.toArray());
+        resolved.add(removed == null ? 0 : removed);
+        fields.clear();
+    }
+
+    /**
+     * 重新发送订单消息，沿用秒杀时分配的订单id，原来的消息迟到时由消费者按订单id和一人一单去重
+     * 订单id的映射已经过期时分配新的订单id并登记，用户查询原来的订单id时看到的状态以过期为准
+     */
+    private void reenqueue(OrderKey orderKey, Long userId) {
+        Long orderId = orderStatusRegistry.findOrderId(orderKey.voucherId, userId);
+        if (orderId == null) {
+            orderId = redisIdWorker.nextId("order");
+            orderStatusRegistry.markPending(orderId, userId, orderKey.voucherId);
+        }
+        VoucherOrder order = new VoucherOrder();
+        order.setId(orderId);
+        order.setUserId(userId);
+        order.setVoucherId(orderKey.voucherId);
+        voucherOrderService.enqueueVoucherOrder(order);
+        reenqueued.increment();
+        log.warn("订单缺失，重新发送订单消息, voucherId: {}, userId: {}, orderId: {}", orderKey.voucherId, userId, orderId);
+    }
+
+    /**
+     * 补偿：移除用户的购买资格，数据库还有库存时把库存归还到用户所在的分片并清除各节点的售罄标记，订单标记为失败
+     * 用户登记在哪个分片的订单集合中，扣减的就是哪个分片的库存（不足时扣减了相邻分片，归还到所在分片不影响总量）
+     */
+    private void compensate(OrderKey orderKey, Long userId) {
+        Long removed = stringRedisTemplate.opsForSet().remove(orderKey.key, userId.toString());
+        if (removed == null || removed == 0) {
+            return;
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(orderKey.voucherId);
+        if (voucher != null && voucher.getStock() > 0) {
+            //描述不完整时从数据库重建，不会创建只有stock字段的描述
+            seckillStock.addStock(orderKey.voucherId, orderKey.shard, 1);
+            soldOutRegistry.reset(orderKey.voucherId);
+        }
+        Long orderId = orderStatusRegistry.findOrderId(orderKey.voucherId, userId);
+        if (orderId != null) {
+            VoucherOrder order = new VoucherOrder();
+            order.setId(orderId);
+            order.setUserId(userId);
+            order.setVoucherId(orderKey.voucherId);
+            orderStatusRegistry.markFailed(Collections.singletonList(order), "订单创建超时，已退还购买资格");
+        }
+        compensated.increment();
+        log.error("订单重新发送后仍然缺失，已补偿, voucherId: {}, userId: {}", orderKey.voucherId, userId);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("rounds", round.get());
+        stats.put("scannedKeys", scannedKeys.sum());
+        stats.put("scannedUsers", scannedUsers.sum());
+        Long drift = stringRedisTemplate.opsForHash().size(SECKILL_RECONCILE_SUSPECTS_KEY);
+        stats.put("drift", drift == null ? 0 : drift);
+        stats.put("resolved", resolved.sum());
+        stats.put("reenqueued", reenqueued.sum());
+        stats.put("compensated", compensated.sum());
+        stats.put("lastRunTime", lastRunTime);
+        stats.put("lastRunMillis", lastRunMillis);
+        return stats;
+    }
+
+    /**
+     * 疑似缺失的订单，在redis中保存为 首次发现时间:重新发送时间:最近出现的轮次
+     */
+    private static final class Suspect {
+        private final long since;
+        private long reenqueuedAt;
+        private long round;
+
+        private Suspect(long since, long reenqueuedAt) {
+            this.since = since;
+            this.reenqueuedAt = reenqueuedAt;
+        }
+
+        private static Suspect parse(String value) {
+            String[] parts = value.split(":");
+            Suspect suspect = new Suspect(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+            suspect.round = Long.parseLong(parts[2]);
+            return suspect;
+        }
+
+        @Override
+        public String toString() {
+            return since + ":" + reenqueuedAt + ":" + round;
+        }
+    }
+
+    /**
+     * 订单key：seckill:order:{voucherId}，分片时为seckill:order:{voucherId:shard}
+     */
+    private static final class OrderKey {
+        private final String key;
+        private final Long voucherId;
+        private final Integer shard;
+
+        private OrderKey(String key, Long voucherId, Integer shard) {
+            this.key = key;
+            this.voucherId = voucherId;
+            this.shard = shard;
+        }
+
+        private static OrderKey parse(String key) {
+            String tag = key.substring(SECKILL_ORDER_KEY.length());
+            if (!tag.startsWith("{") || !tag.endsWith("}")) {
+                return null;
+            }
+            String[] parts = tag.substring(1, tag.length() - 1).split(":");
+            try {
+                return new OrderKey(key, Long.valueOf(parts[0]), parts.length > 1 ? Integer.valueOf(parts[1]) : null);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
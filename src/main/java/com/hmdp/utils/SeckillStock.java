@@ -0,0 +1,415 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券在redis中的库存和购买资格
+ * 1.每个秒杀券在redis中保存一个描述hash（stock库存，begin/end时间窗口），由seckill.lua原子地校验时间窗口、一人一单和库存
+ * 2.超热门的秒杀券可以把库存拆分到多个分片，分散到不同的redis slot；分片的描述key和订单key使用相同的hash tag {voucherId:shard}
+ *   用户固定登记在所属分片的订单集合中，保证一人一单；所属分片库存不足时依次扣减相邻分片
+ * 3.脚本启动时预先SCRIPT LOAD，执行时使用EVALSHA，不重复发送脚本内容
+ * 4.使用redis stream传递订单时，扣减库存成功的同一脚本中把订单写入该秒杀券（分片）的订单stream，
+ *   stream key与描述key使用相同的hash tag（stream.orders:{voucherId}或stream.orders:{voucherId:shard}），
+ *   第一次写入时登记到stream.orders.keys，由消费者发现
+ * 5.描述不存在或者不完整（历史秒杀券、描述已过期）时，从tb_seckill_voucher重建描述后重新执行一次，
+ *   同一节点上同一个秒杀券的重建合并为一次，其它节点的重建不会覆盖已经完整的描述
+ */
+@Slf4j
+@Component
+public class SeckillStock {
+
+    public static final int SUCCESS = 0;
+    public static final int NO_STOCK = 1;
+    public static final int DUPLICATE = 2;
+    public static final int NOT_FOUND = 3;
+    public static final int NOT_STARTED = 4;
+    public static final int ENDED = 5;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> REBUILD_SCRIPT;
+    private static final DefaultRedisScript<Long> ADD_STOCK_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        REBUILD_SCRIPT = new DefaultRedisScript<>();
+        REBUILD_SCRIPT.setLocation(new ClassPathResource("seckill_rebuild.lua"));
+        REBUILD_SCRIPT.setResultType(Long.class);
+        ADD_STOCK_SCRIPT = new DefaultRedisScript<>();
+        ADD_STOCK_SCRIPT.setLocation(new ClassPathResource("seckill_add_stock.lua"));
+        ADD_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 秒杀结束后描述key继续保留的时间，便于对账
+     */
+    private static final long RETAIN_AFTER_END_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * 数据库中也不存在的秒杀券，在这段时间内不再重建，避免不存在的id反复查询数据库
+     */
+    private static final long MISSING_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * 重建完成后的这段时间内，迟到的NOT_FOUND请求直接重新执行脚本，不再查询数据库
+     */
+    private static final long REBUILT_WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    /**
+     * 新增秒杀券时的分片数，1表示不分片
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int defaultShards;
+
+    /**
+     * 优惠券id -> 分片数，秒杀券创建后分片数不再变化
+     */
+    private final Map<Long, Integer> shardsCache = new ConcurrentHashMap<>();
+
+    /**
+     * 优惠券id -> 数据库中不存在的标记的过期时间
+     */
+    private final Map<Long, Long> missing = new ConcurrentHashMap<>();
+
+    /**
+     * 同一节点上同一个秒杀券的并发重建只执行一次，其余请求等待结果
+     */
+    private final SingleFlight rebuildFlight = new SingleFlight();
+
+    /**
+     * 优惠券id -> 最近一次重建成功的时间
+     */
+    private final Map<Long, Long> rebuiltAt = new ConcurrentHashMap<>();
+
+    /**
+     * 本节点已经登记过的订单stream
+     */
+    private final Set<String> registeredStreams = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 预先加载脚本，之后的EVALSHA不需要再发送脚本内容
+     * redis重启导致脚本丢失时，RedisTemplate会自动改用EVAL重新发送一次
+     */
+    @PostConstruct
+    private void loadScripts() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.scriptingCommands().scriptLoad(
+                        SECKILL_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                connection.scriptingCommands().scriptLoad(
+                        SHARD_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("预加载秒杀脚本失败，首次执行时再加载", e);
+        }
+    }
+
+    public static String voucherKey(Long voucherId) {
+        return SECKILL_VOUCHER_KEY + "{" + voucherId + "}";
+    }
+
+    public static String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + "}";
+    }
+
+    public static String voucherKey(Long voucherId, int shard) {
+        return SECKILL_VOUCHER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String streamKey(Long voucherId) {
+        return ORDER_STREAM_KEY + "{" + voucherId + "}";
+    }
+
+    public static String streamKey(Long voucherId, int shard) {
+        return ORDER_STREAM_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 把订单stream登记到stream.orders.keys，消费者从中发现需要读取的stream，每个节点每个stream只登记一次
+     */
+    public void registerStream(String streamKey) {
+        if (!registeredStreams.add(streamKey)) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForSet().add(ORDER_STREAM_REGISTRY_KEY, streamKey);
+        } catch (Exception e) {
+            registeredStreams.remove(streamKey);
+            throw e;
+        }
+    }
+
+    /**
+     * 查询优惠券的分片数，没有分片时返回1
+     */
+    public int shardsOf(Long voucherId) {
+        return shardsCache.computeIfAbsent(voucherId, id -> {
+            String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + id);
+            return StrUtil.isBlank(shards) ? 1 : Integer.parseInt(shards);
+        });
+    }
+
+    /**
+     * 保存秒杀券的描述，开启分片时把库存平均拆分到各个分片，余数分给前面的分片
+     */
+    public void init(Long voucherId, int stock, LocalDateTime beginTime, LocalDateTime endTime) {
+        long begin = beginTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long end = endTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long expireAt = end + RETAIN_AFTER_END_MILLIS;
+        int shards = Math.max(defaultShards, 1);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < shards; i++) {
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                String key = shards > 1 ? voucherKey(voucherId, i) : voucherKey(voucherId);
+                Map<String, String> descriptor = new HashMap<>(4);
+                descriptor.put("stock", String.valueOf(shardStock));
+                descriptor.put("begin", String.valueOf(begin));
+                descriptor.put("end", String.valueOf(end));
+                stringRedisConnection.hMSet(key, descriptor);
+                stringRedisConnection.pExpireAt(key, expireAt);
+            }
+            if (shards > 1) {
+                stringRedisConnection.set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+                stringRedisConnection.pExpireAt(SECKILL_SHARDS_KEY + voucherId, expireAt);
+            }
+            return null;
+        });
+        shardsCache.put(voucherId, shards);
+    }
+
+    /**
+     * 补充库存，分片时平均增加到各个分片
+     * 调用前数据库库存已经增加；描述不完整时不增加，而是从数据库重建完整的描述
+     */
+    public void addStock(Long voucherId, int count) {
+        int shards = shardsOf(voucherId);
+        boolean incomplete = false;
+        for (int i = 0; i < shards; i++) {
+            int shardCount = count / shards + (i < count % shards ? 1 : 0);
+            if (shardCount <= 0) {
+                continue;
+            }
+            String key = shards > 1 ? voucherKey(voucherId, i) : voucherKey(voucherId);
+            Long result = stringRedisTemplate.execute(ADD_STOCK_SCRIPT,
+                    Collections.singletonList(key), String.valueOf(shardCount));
+            incomplete |= result == null || result < 0;
+        }
+        if (incomplete) {
+            rebuild(voucherId);
+        }
+    }
+
+    /**
+     * 归还库存到指定的分片，shard为null表示不分片
+     * 描述不完整时不增加，而是从数据库重建完整的描述
+     */
+    public void addStock(Long voucherId, Integer shard, int count) {
+        String key = shard == null ? voucherKey(voucherId) : voucherKey(voucherId, shard);
+        Long result = stringRedisTemplate.execute(ADD_STOCK_SCRIPT,
+                Collections.singletonList(key), String.valueOf(count));
+        if (result == null || result < 0) {
+            rebuild(voucherId);
+        }
+    }
+
+    /**
+     * 从tb_seckill_voucher重建秒杀券的描述，描述已经完整的分片不覆盖
+     * redis的库存 = 数据库库存 - 已经登记购买资格但还没有落库的订单
+     * @return 数据库中存在该秒杀券时返回true
+     */
+    public boolean rebuild(Long voucherId) {
+        Long missingUntil = missing.get(voucherId);
+        if (missingUntil != null && missingUntil > System.currentTimeMillis()) {
+            return false;
+        }
+        //1.查询数据库
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            missing.put(voucherId, System.currentTimeMillis() + MISSING_TTL_MILLIS);
+            return false;
+        }
+        missing.remove(voucherId);
+        //2.计算还没有落库的订单
+        int shards = shardsOf(voucherId);
+        long buyers = 0;
+        for (int i = 0; i < shards; i++) {
+            Long size = stringRedisTemplate.opsForSet().size(shards > 1 ? orderKey(voucherId, i) : orderKey(voucherId));
+            buyers += size == null ? 0 : size;
+        }
+        long ordered = voucherOrderMapper.selectCount(
+                new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+        long stock = Math.max(0, voucher.getStock() - Math.max(0, buyers - ordered));
+        //3.写入描述，秒杀已结束时也保留一段时间，之后的请求直接返回已结束
+        long begin = voucher.getBeginTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long end = voucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long expireAt = Math.max(end, System.currentTimeMillis()) + RETAIN_AFTER_END_MILLIS;
+        for (int i = 0; i < shards; i++) {
+            long shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.execute(REBUILD_SCRIPT,
+                    Collections.singletonList(shards > 1 ? voucherKey(voucherId, i) : voucherKey(voucherId)),
+                    String.valueOf(shardStock), String.valueOf(begin), String.valueOf(end), String.valueOf(expireAt));
+        }
+        log.info("重建秒杀券描述, voucherId: {}, stock: {}", voucherId, stock);
+        return true;
+    }
+
+    /**
+     * 查询秒杀的结束时间（毫秒时间戳），描述不存在时查询数据库
+     * @return 数据库中也不存在该秒杀券时返回null
+     */
+    public Long endOf(Long voucherId) {
+        String key = shardsOf(voucherId) > 1 ? voucherKey(voucherId, 0) : voucherKey(voucherId);
+        Object end = stringRedisTemplate.opsForHash().get(key, "end");
+        if (end != null) {
+            return Long.valueOf(end.toString());
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        return voucher == null ? null : voucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 判断购买资格，有资格时扣减库存并登记用户
+     * @return SUCCESS、NO_STOCK、DUPLICATE、NOT_FOUND、NOT_STARTED、ENDED
+     */
+    public int seckill(Long voucherId, Long userId) {
+        return seckill(voucherId, userId, null);
+    }
+
+    /**
+     * 判断购买资格，有资格时扣减库存、登记用户，并在同一脚本中把订单写入订单stream
+     * @param orderId 订单id，为null时不写入stream
+     * @return SUCCESS、NO_STOCK、DUPLICATE、NOT_FOUND、NOT_STARTED、ENDED
+     */
+    public int seckill(Long voucherId, Long userId, Long orderId) {
+        int r = tryOnce(voucherId, userId, orderId);
+        //描述不存在或者不完整时从数据库重建，重建后重新执行一次
+        if (r == NOT_FOUND && rebuildCoalesced(voucherId)) {
+            r = tryOnce(voucherId, userId, orderId);
+        }
+        return r;
+    }
+
+    /**
+     * 合并同一个秒杀券的重建：描述丢失时大量请求同时返回NOT_FOUND，只有一个请求查询数据库，
+     * 其余请求等待它完成后重新执行脚本；刚重建完成时迟到的请求也直接重新执行脚本
+     */
+    private boolean rebuildCoalesced(Long voucherId) {
+        Long last = rebuiltAt.get(voucherId);
+        if (last != null && System.currentTimeMillis() - last < REBUILT_WINDOW_MILLIS) {
+            return true;
+        }
+        return rebuildFlight.execute(voucherId.toString(), () -> {
+            boolean rebuilt = rebuild(voucherId);
+            if (rebuilt) {
+                rebuiltAt.put(voucherId, System.currentTimeMillis());
+            }
+            return rebuilt;
+        });
+    }
+
+    private int tryOnce(Long voucherId, Long userId, Long orderId) {
+        String user = userId.toString();
+        String voucher = voucherId.toString();
+        String order = orderId == null ? "" : orderId.toString();
+        int shards = shardsOf(voucherId);
+        if (shards <= 1) {
+            String streamKey = orderId == null ? null : streamKey(voucherId);
+            Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                    keys(streamKey, voucherKey(voucherId), orderKey(voucherId)), user, "0", voucher, order);
+            return registered(result.intValue(), streamKey);
+        }
+        //1.在用户所属分片校验并登记用户，尝试扣减该分片的库存
+        int home = (int) Math.floorMod(userId, (long) shards);
+        String orderKey = orderKey(voucherId, home);
+        String homeStream = orderId == null ? null : streamKey(voucherId, home);
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                keys(homeStream, voucherKey(voucherId, home), orderKey), user, "1", voucher, order);
+        int r = result.intValue();
+        if (r != NO_STOCK) {
+            return registered(r, homeStream);
+        }
+        //2.所属分片库存不足，按固定顺序尝试相邻分片，订单写入扣减库存的分片的stream
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            String shardStream = orderId == null ? null : streamKey(voucherId, shard);
+            Long shardResult = stringRedisTemplate.execute(SHARD_SCRIPT,
+                    keys(shardStream, voucherKey(voucherId, shard)), user, voucher, order);
+            if (shardResult.intValue() == SUCCESS) {
+                return registered(SUCCESS, shardStream);
+            }
+        }
+        //3.所有分片都没有库存，撤销用户登记
+        stringRedisTemplate.opsForSet().remove(orderKey, user);
+        return NO_STOCK;
+    }
+
+    /**
+     * 订单写入stream后登记该stream
+     */
+    private int registered(int r, String streamKey) {
+        if (r == SUCCESS && streamKey != null) {
+            registerStream(streamKey);
+        }
+        return r;
+    }
+
+    /**
+     * 脚本的KEYS，有订单stream时追加在最后
+     */
+    private static List<String> keys(String streamKey, String... keys) {
+        List<String> list = new ArrayList<>(keys.length + 1);
+        Collections.addAll(list, keys);
+        if (streamKey != null) {
+            list.add(streamKey);
+        }
+        return list;
+    }
+}
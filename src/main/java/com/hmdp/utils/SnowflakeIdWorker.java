@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 雪花算法的id：31位时间戳（秒） + 1位标记 + 10位workerId + 21位序列号
+ * 1.时间戳与号段模式相同，标记位为1，与号段模式的序列号（每天不超过2^31）不会重复，两种模式可以切换
+ * 2.时间戳、workerId和序列号保存在一个long中，通过CAS更新，生成id不需要加锁，也不访问redis
+ * 3.时钟回拨不超过maxBackwardSeconds时沿用上次的时间戳继续递增序列号，超过时拒绝生成
+ * 4.workerId由WorkerIdLease从redis租用，租约到期前必须续期，否则停止生成
+ */
+public class SnowflakeIdWorker {
+
+    private static final int SEQUENCE_BITS = 21;
+    private static final int WORKER_BITS = 10;
+    private static final int TIMESTAMP_SHIFT = SEQUENCE_BITS + WORKER_BITS;
+
+    public static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long LOW_BITS_MASK = (1L << TIMESTAMP_SHIFT) - 1;
+
+    /**
+     * 雪花算法id的标记位
+     */
+    private static final long SNOWFLAKE_FLAG = 1L << TIMESTAMP_SHIFT;
+
+    /**
+     * 允许的时钟回拨秒数
+     */
+    private final long maxBackwardSeconds;
+
+    /**
+     * 时间戳 << 31 | workerId << 21 | 序列号，未分配workerId时为-1
+     */
+    private final AtomicLong state = new AtomicLong(-1);
+
+    /**
+     * 租约的有效截止时间（毫秒）
+     */
+    private volatile long leaseDeadline;
+
+    public SnowflakeIdWorker(long maxBackwardSeconds) {
+        this.maxBackwardSeconds = maxBackwardSeconds;
+    }
+
+    /**
+     * 分配workerId
+     * @param lastTimestamp 该workerId上一次使用的时间戳，之后生成的id从下一秒开始
+     */
+    public void assign(int workerId, long lastTimestamp, long leaseDeadline) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("workerId超出范围: " + workerId);
+        }
+        long timestamp = Math.max(lastTimestamp + 1, RedisIdWorker.nowSecond() - RedisIdWorker.BEGIN_TIMESTAMP);
+        state.set(timestamp << TIMESTAMP_SHIFT | (long) workerId << SEQUENCE_BITS);
+        this.leaseDeadline = leaseDeadline;
+    }
+
+    /**
+     * 续期成功，延长截止时间
+     */
+    public void extend(long leaseDeadline) {
+        this.leaseDeadline = leaseDeadline;
+    }
+
+    /**
+     * 租约丢失，停止生成
+     */
+    public void revoke() {
+        this.leaseDeadline = 0;
+    }
+
+    public int getWorkerId() {
+        long current = state.get();
+        return current < 0 ? -1 : (int) ((current >>> SEQUENCE_BITS) & MAX_WORKER_ID);
+    }
+
+    /**
+     * 最近一次使用的时间戳
+     */
+    public long getLastTimestamp() {
+        long current = state.get();
+        return current < 0 ? 0 : current >>> TIMESTAMP_SHIFT;
+    }
+
+    public long nextId() {
+        if (System.currentTimeMillis() >= leaseDeadline) {
+            throw new IllegalStateException("workerId租约已失效");
+        }
+        while (true) {
+            //1.生成时间戳
+            long now = RedisIdWorker.nowSecond() - RedisIdWorker.BEGIN_TIMESTAMP;
+            long old = state.get();
+            long lastTimestamp = old >>> TIMESTAMP_SHIFT;
+            //2.计算下一个状态
+            long next;
+            if (now > lastTimestamp) {
+                //2.1新的一秒，序列号从0开始
+                next = now << TIMESTAMP_SHIFT | (old & ~SEQUENCE_MASK & LOW_BITS_MASK);
+            } else if (lastTimestamp - now > maxBackwardSeconds) {
+                //2.2时钟回拨超过允许范围
+                throw new IllegalStateException("时钟回拨" + (lastTimestamp - now) + "秒，拒绝生成id");
+            } else if ((old & SEQUENCE_MASK) == SEQUENCE_MASK) {
+                //2.3本秒的序列号已用完，借用下一秒，超前太多时等待时钟追上
+                if (lastTimestamp + 1 - now > maxBackwardSeconds) {
+                    Thread.yield();
+                    continue;
+                }
+                next = (lastTimestamp + 1) << TIMESTAMP_SHIFT | (old & ~SEQUENCE_MASK & LOW_BITS_MASK);
+            } else {
+                //2.4同一秒或回拨范围内，沿用上次的时间戳递增序列号
+                next = old + 1;
+            }
+            //3.CAS更新，失败时重试
+            if (state.compareAndSet(old, next)) {
+                return (next >>> TIMESTAMP_SHIFT) << RedisIdWorker.COUNT_BITS | SNOWFLAKE_FLAG | (next & LOW_BITS_MASK);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_RESET_CHANNEL;
+
+/**
+ * 本地售罄标记：秒杀脚本第一次返回库存不足时标记并广播到所有节点，
+ * 之后的请求直接在本地拒绝，不再访问redis；补充库存时清除标记
+ * 标记有最长有效期，广播消息乱序或丢失时也只会在有效期内误拒
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 售罄标记的有效期（毫秒）
+     */
+    @Value("${hmdp.seckill.sold-out-ttl:10000}")
+    private long soldOutTtl;
+
+    /**
+     * 优惠券id -> 标记的过期时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    private final LongAdder rejectCount = new LongAdder();
+
+    /**
+     * 判断优惠券是否已售罄，已售罄时计入本地拒绝次数
+     */
+    public boolean isSoldOut(Long voucherId) {
+        if (!isMarked(voucherId)) {
+            return false;
+        }
+        rejectCount.increment();
+        return true;
+    }
+
+    /**
+     * 判断优惠券是否有未过期的售罄标记，不计入拒绝次数
+     */
+    public boolean isMarked(Long voucherId) {
+        Long expireTime = soldOut.get(voucherId);
+        if (expireTime == null) {
+            return false;
+        }
+        if (expireTime < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireTime);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄，并通知其它节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.containsKey(voucherId)) {
+            return;
+        }
+        onSoldOut(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 补充库存后清除售罄标记，并通知其它节点
+     */
+    public void reset(Long voucherId) {
+        onReset(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_STOCK_RESET_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 收到售罄通知
+     */
+    public void onSoldOut(Long voucherId) {
+        soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtl);
+    }
+
+    /**
+     * 收到补充库存通知
+     */
+    public void onReset(Long voucherId) {
+        soldOut.remove(voucherId);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("soldOut", soldOut.keySet());
+        stats.put("rejected", rejectCount.sum());
+        return stats;
+    }
+}
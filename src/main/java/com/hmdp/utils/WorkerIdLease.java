@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LAST_KEY;
+
+/**
+ * 从redis租用雪花算法的workerId
+ * 1.SET NX PX占用一个空闲的workerId，并从id:worker:last读取该workerId上次使用的时间戳，之后的id从下一秒开始
+ * 2.每ttl/3续期一次，同时记录当前使用的时间戳；续期失败（租约被别人占用）时立即停止生成并重新租用
+ * 3.本地的截止时间只取续期开始时间之后的2/3个ttl，redis不可用时在租约真正过期之前停止生成
+ */
+@Slf4j
+public class WorkerIdLease {
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final SnowflakeIdWorker worker;
+
+    /**
+     * 租约有效期（毫秒）
+     */
+    private final long ttlMillis;
+
+    private final String owner = UUID.randomUUID().toString(true);
+
+    private final ScheduledExecutorService heartbeat =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("id-worker-lease-", true));
+
+    public WorkerIdLease(StringRedisTemplate stringRedisTemplate, SnowflakeIdWorker worker, long ttlMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.worker = worker;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void start() {
+        acquire();
+        long interval = ttlMillis / 3;
+        heartbeat.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        heartbeat.shutdownNow();
+        int workerId = worker.getWorkerId();
+        if (workerId < 0) {
+            return;
+        }
+        worker.revoke();
+        try {
+            saveLastTimestamp(workerId);
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + workerId), owner);
+        } catch (Exception e) {
+            log.warn("释放workerId失败, workerId: {}", workerId, e);
+        }
+    }
+
+    /**
+     * 从随机位置开始依次尝试占用空闲的workerId
+     */
+    private void acquire() {
+        int start = RandomUtil.randomInt(SnowflakeIdWorker.MAX_WORKER_ID + 1);
+        for (int i = 0; i <= SnowflakeIdWorker.MAX_WORKER_ID; i++) {
+            int workerId = (start + i) & SnowflakeIdWorker.MAX_WORKER_ID;
+            long begin = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + workerId, owner, ttlMillis, TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(success)) {
+                continue;
+            }
+            Object last = stringRedisTemplate.opsForHash().get(ID_WORKER_LAST_KEY, String.valueOf(workerId));
+            long lastTimestamp = last == null ? 0 : Long.parseLong(last.toString());
+            worker.assign(workerId, lastTimestamp, deadline(begin));
+            log.info("租用workerId: {}, 上次使用的时间戳: {}", workerId, lastTimestamp);
+            return;
+        }
+        throw new IllegalStateException("没有空闲的workerId");
+    }
+
+    private void renew() {
+        int workerId = worker.getWorkerId();
+        long begin = System.currentTimeMillis();
+        try {
+            Long result = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + workerId), owner, String.valueOf(ttlMillis));
+            if (result != null && result == 1L) {
+                worker.extend(deadline(begin));
+                saveLastTimestamp(workerId);
+                return;
+            }
+            //租约已被别人占用，立即停止并重新租用
+            log.warn("workerId租约丢失, workerId: {}", workerId);
+            worker.revoke();
+            acquire();
+        } catch (Exception e) {
+            //redis不可用，截止时间到达后自动停止生成
+            log.error("workerId续期失败, workerId: {}", workerId, e);
+        }
+    }
+
+    private void saveLastTimestamp(int workerId) {
+        stringRedisTemplate.opsForHash().put(ID_WORKER_LAST_KEY,
+                String.valueOf(workerId), String.valueOf(worker.getLastTimestamp()));
+    }
+
+    private long deadline(long begin) {
+        return begin + ttlMillis * 2 / 3;
+    }
+}
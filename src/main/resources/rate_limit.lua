@@ -0,0 +1,29 @@
+-- 滑动窗口限流：窗口内的请求按时间记录在zset中
+-- 1.参数列表
+-- 1.1限流key
+local key = KEYS[1]
+-- 1.2窗口大小（毫秒）
+local window = tonumber(ARGV[1])
+-- 1.3窗口内允许的请求数
+local limit = tonumber(ARGV[2])
+-- 1.4本次请求的唯一标识
+local member = ARGV[3]
+
+-- 2.脚本业务
+-- 2.1使用redis服务器时间
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+-- 2.2移除窗口之外的请求
+redis.call('zremrangebyscore', key, 0, now - window)
+-- 2.3判断窗口内的请求数
+if (redis.call('zcard', key) >= limit) then
+    -- 超过限制，返回0
+    return 0
+end
+-- 2.4记录本次请求
+redis.call('zadd', key, now, member)
+redis.call('pexpire', key, window)
+return 1
@@ -1,28 +1,61 @@
+-- 秒杀资格判断：校验秒杀券、时间窗口、一人一单和库存，成功时扣减库存并登记用户
+-- 分片库存时在用户所属分片上执行，库存不足时由调用方继续扣减相邻分片（seckill_shard.lua）
+-- 传入订单stream时，在同一脚本中把订单写入stream，由消费者组异步创建订单
 -- 1.参数列表
--- 1.1优惠券id
-local voucherId = ARGV[1]
--- 1.2用户id
-local userId = ARGV[2]
+-- 1.1秒杀券描述key，hash：stock库存，begin开始时间，end结束时间（毫秒时间戳）
+local voucherKey = KEYS[1]
+-- 1.2订单key
+local orderKey = KEYS[2]
+-- 1.3用户id
+local userId = ARGV[1]
+-- 1.4是否为分片模式，分片模式下库存不足时也先登记用户
+local sharded = ARGV[2] == '1'
+-- 1.5订单stream key，可选，与描述key使用相同的hash tag
+local streamKey = KEYS[3]
+-- 1.6优惠券id和订单id，传入订单stream时使用
+local voucherId = ARGV[3]
+local orderId = ARGV[4]
 
--- 2.数据key
--- 2.1库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2订单key
-local orderKey = 'seckill:order:' .. voucherId
-
--- 3.脚本业务
--- 3.1判断库存是否充足 get stockKey
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2库存不足，返回1
-    return 1
+-- 2.脚本业务
+-- 2.1判断秒杀券是否存在，库存和时间窗口必须都存在
+local voucher = redis.call('hmget', voucherKey, 'stock', 'begin', 'end')
+if (not (voucher[1] and voucher[2] and voucher[3])) then
+    -- 不存在或者不完整，返回3，由调用方从数据库重建
+    return 3
+end
+-- 2.2判断秒杀时间，使用redis服务器时间
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (now < tonumber(voucher[2])) then
+    -- 尚未开始，返回4
+    return 4
 end
--- 3.3判断用户是否下单 sismember orderKey userId
-if(redis.call('sismember',orderKey,userId) == 1) then
-    -- 3.4存在，说明是重复下单，返回2
+if (now > tonumber(voucher[3])) then
+    -- 已经结束，返回5
+    return 5
+end
+-- 2.3判断用户是否下单 sismember orderKey userId
+if (redis.call('sismember', orderKey, userId) == 1) then
+    -- 存在，说明是重复下单，返回2
     return 2
 end
--- 3.5扣库存 incrby stockKey -1
-redis.call('incrby',stockKey,-1)
--- 3.6下单（保存用户）sadd orderKey userId
-redis.call('sadd',orderKey,userId)
-return 0
\ No newline at end of file
+-- 2.4判断库存是否充足
+if (tonumber(voucher[1]) <= 0) then
+    -- 库存不足，返回1，分片模式下先登记用户，保证扣减相邻分片期间的一人一单
+    if (sharded) then
+        redis.call('sadd', orderKey, userId)
+    end
+    return 1
+end
+-- 2.5扣库存 hincrby voucherKey stock -1
+redis.call('hincrby', voucherKey, 'stock', -1)
+-- 2.6下单（保存用户）sadd orderKey userId
+redis.call('sadd', orderKey, userId)
+-- 2.7发送消息到队列中 xadd stream.orders:{voucherId} * userId userId voucherId voucherId id orderId
+if (streamKey) then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
+return 0
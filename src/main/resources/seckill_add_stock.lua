@@ -0,0 +1,14 @@
+-- 补充秒杀库存：只在描述完整时增加库存，不创建只有stock字段的描述
+-- 1.参数列表
+-- 1.1秒杀券描述key
+local voucherKey = KEYS[1]
+-- 1.2增加的数量
+local count = ARGV[1]
+
+-- 2.描述不完整，返回-1，由调用方从数据库重建
+local voucher = redis.call('hmget', voucherKey, 'stock', 'begin', 'end')
+if (not (voucher[1] and voucher[2] and voucher[3])) then
+    return -1
+end
+-- 3.增加库存，返回增加后的库存
+return redis.call('hincrby', voucherKey, 'stock', count)
@@ -0,0 +1,19 @@
+-- 重建秒杀券描述：描述不完整（不存在或者只有stock字段）时写入完整的描述，已经完整时不覆盖
+-- 1.参数列表
+-- 1.1秒杀券描述key
+local voucherKey = KEYS[1]
+-- 1.2库存、开始时间、结束时间、描述的过期时间（毫秒时间戳）
+local stock = ARGV[1]
+local beginTime = ARGV[2]
+local endTime = ARGV[3]
+local expireAt = ARGV[4]
+
+-- 2.描述已经完整，说明其它节点已经重建，返回0
+local voucher = redis.call('hmget', voucherKey, 'stock', 'begin', 'end')
+if (voucher[1] and voucher[2] and voucher[3]) then
+    return 0
+end
+-- 3.写入完整的描述，返回1
+redis.call('hmset', voucherKey, 'stock', stock, 'begin', beginTime, 'end', endTime)
+redis.call('pexpireat', voucherKey, expireAt)
+return 1
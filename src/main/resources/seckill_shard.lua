@@ -0,0 +1,19 @@
+-- 分片库存：扣减相邻分片的库存，用户已在所属分片登记
+-- 1.分片的秒杀券描述key
+local voucherKey = KEYS[1]
+-- 1.1该分片的订单stream key，可选，扣减成功时写入订单，ARGV为用户id、优惠券id和订单id
+local streamKey = KEYS[2]
+
+-- 2.判断库存是否充足，分片不存在时视为库存不足
+local stock = tonumber(redis.call('hget', voucherKey, 'stock') or 0)
+if (stock <= 0) then
+    -- 库存不足，返回1
+    return 1
+end
+-- 3.扣库存 hincrby voucherKey stock -1
+redis.call('hincrby', voucherKey, 'stock', -1)
+-- 4.发送消息到队列中 xadd stream.orders:{voucherId:shard} * userId userId voucherId voucherId id orderId
+if (streamKey) then
+    redis.call('xadd', streamKey, '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+end
+return 0
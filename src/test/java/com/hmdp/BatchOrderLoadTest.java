@@ -0,0 +1,97 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 订单落库吞吐量：逐条创建订单 vs 每批batchSize条批量创建订单（不含分布式锁的开销）
+ * 需要本地的mysql和redis，地址见application-load.yaml
+ * 默认不执行，运行方式：mvn -P load test -Dtest=BatchOrderLoadTest，参数如 -Dload.orders=5000 -Dload.batch-size=100
+ */
+@Tag("load")
+@ActiveProfiles("load")
+@SpringBootTest
+class BatchOrderLoadTest {
+
+    /**
+     * 压测用户的id从这里开始，避免与真实用户重复
+     */
+    private static final long USER_ID_BASE = 9_000_000_000L;
+
+    private static final long VOUCHER_ID = 900001L;
+
+    private final int orders = Integer.getInteger("load.orders", 2000);
+    private final int batchSize = Integer.getInteger("load.batch-size", 100);
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Test
+    void createOrders() {
+        SeckillVoucher seckillVoucher = new SeckillVoucher();
+        seckillVoucher.setVoucherId(VOUCHER_ID);
+        seckillVoucher.setStock(orders * 2);
+        seckillVoucher.setBeginTime(LocalDateTime.now());
+        seckillVoucher.setEndTime(LocalDateTime.now().plusDays(1));
+        seckillVoucherService.save(seckillVoucher);
+        try {
+            //1.逐条创建订单
+            long begin = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                voucherOrderService.createVoucherOrder(newVoucherOrder(USER_ID_BASE + i));
+            }
+            long single = System.nanoTime() - begin;
+            //2.批量创建订单
+            begin = System.nanoTime();
+            List<VoucherOrder> batch = new ArrayList<>(batchSize);
+            for (int i = orders; i < orders * 2; i++) {
+                batch.add(newVoucherOrder(USER_ID_BASE + i));
+                if (batch.size() == batchSize) {
+                    voucherOrderService.createVoucherOrders(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                voucherOrderService.createVoucherOrders(batch);
+            }
+            long batched = System.nanoTime() - begin;
+            //3.输出报告
+            System.out.println("========== 订单落库 ==========");
+            System.out.printf("订单数: %d, 每批: %d%n", orders, batchSize);
+            System.out.printf("逐条: %.1f orders/s, 批量: %.1f orders/s%n",
+                    orders * 1e9 / single, orders * 1e9 / batched);
+            Assertions.assertEquals(0, seckillVoucherService.getById(VOUCHER_ID).getStock().intValue());
+        } finally {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", VOUCHER_ID));
+            seckillVoucherService.removeById(VOUCHER_ID);
+        }
+    }
+
+    private VoucherOrder newVoucherOrder(long userId) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(redisIdWorker.nextId("order"));
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(VOUCHER_ID);
+        return voucherOrder;
+    }
+}
@@ -1,27 +1,51 @@
 package com.hmdp;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ICacheOutboxService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.OrderStatusRegistry;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Range;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_ID_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_REGISTRY_KEY;
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
 
 @SpringBootTest
@@ -35,31 +59,184 @@ class HmDianPingApplicationTests {
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private OrderStatusRegistry orderStatusRegistry;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
     @Test
     void testIdWorker() throws InterruptedException {
-        CountDownLatch latch = new CountDownLatch(300);
+        //1.当前配置的模式（号段或雪花）
+        assertUniqueIds("redis", () -> redisIdWorker.nextId("order"));
+        //2.固定workerId的雪花模式
+        SnowflakeIdWorker snowflake = new SnowflakeIdWorker(5);
+        snowflake.assign(1, 0, Long.MAX_VALUE);
+        assertUniqueIds("snowflake", snowflake::nextId);
+    }
 
-        Runnable task = () ->{
-            for (int i = 0; i < 100; i++) {
-                long id = redisIdWorker.nextId("order");
-                System.out.println("id = " + id);
+    /**
+     * 300个任务并发各生成100个id，校验没有重复，并且每个线程得到的id递增
+     */
+    private void assertUniqueIds(String name, LongSupplier idSupplier) throws InterruptedException {
+        int tasks = 300;
+        int perTask = 100;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicBoolean increasing = new AtomicBoolean(true);
+        CountDownLatch latch = new CountDownLatch(tasks);
+        Runnable task = () -> {
+            try {
+                long last = 0;
+                for (int i = 0; i < perTask; i++) {
+                    long id = idSupplier.getAsLong();
+                    if (id <= last) {
+                        increasing.set(false);
+                    }
+                    last = id;
+                    ids.add(id);
+                }
+            } finally {
+                latch.countDown();
             }
-            latch.countDown();
         };
-        long begin = System.currentTimeMillis();
-        for (int i = 0; i < 300; i++) {
+        for (int i = 0; i < tasks; i++) {
             es.submit(task);
         }
-        latch.await();
-        long end = System.currentTimeMillis();
-        System.out.println("time = " + (end - begin));
+        Assertions.assertTrue(latch.await(30, TimeUnit.SECONDS), name + ": 生成id超时");
+        Assertions.assertEquals(tasks * perTask, ids.size(), name + ": id重复");
+        Assertions.assertTrue(increasing.get(), name + ": 同一线程得到的id不递增");
+    }
+
+    @Test
+    void testBatchCreateOrders() {
+        int n = 200;
+        long voucherId = 900001L;
+        SeckillVoucher seckillVoucher = new SeckillVoucher();
+        seckillVoucher.setVoucherId(voucherId);
+        seckillVoucher.setStock(n * 2);
+        seckillVoucher.setBeginTime(LocalDateTime.now());
+        seckillVoucher.setEndTime(LocalDateTime.now().plusDays(1));
+        seckillVoucherService.save(seckillVoucher);
+        try {
+            //1.逐条创建订单
+            for (long userId = 0; userId < n; userId++) {
+                voucherOrderService.createVoucherOrder(newVoucherOrder(userId, voucherId));
+            }
+            //2.每批100条批量创建订单，吞吐量对比见BatchOrderLoadTest
+            List<VoucherOrder> batch = new ArrayList<>(100);
+            for (long userId = n; userId < n * 2; userId++) {
+                batch.add(newVoucherOrder(userId, voucherId));
+                if (batch.size() == 100) {
+                    voucherOrderService.createVoucherOrders(batch);
+                    batch.clear();
+                }
+            }
+            Assertions.assertEquals(0, seckillVoucherService.getById(voucherId).getStock());
+            Assertions.assertEquals(n * 2, voucherOrderService.query().eq("voucher_id", voucherId).count());
+        } finally {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+        }
     }
 
+    @Test
+    void testSeckillStream() {
+        long voucherId = 900002L;
+        String streamKey = SeckillStock.streamKey(voucherId);
+        List<String> keys = Arrays.asList(SeckillStock.voucherKey(voucherId), SeckillStock.orderKey(voucherId), streamKey);
+        //秒杀券独占自己的订单stream，先清理上次残留的数据
+        stringRedisTemplate.delete(keys);
+        seckillStock.init(voucherId, 1, LocalDateTime.now().minusMinutes(1), LocalDateTime.now().plusMinutes(10));
+        try {
+            long orderId = redisIdWorker.nextId("order");
+            //1.扣减成功，订单在同一脚本中写入该秒杀券的stream，stream登记后由消费者发现
+            Assertions.assertEquals(SeckillStock.SUCCESS, seckillStock.seckill(voucherId, 1L, orderId));
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(streamKey, Range.unbounded());
+            Assertions.assertEquals(1, records.size());
+            Assertions.assertEquals(String.valueOf(orderId), records.get(0).getValue().get("id"));
+            Assertions.assertTrue(stringRedisTemplate.opsForSet().isMember(ORDER_STREAM_REGISTRY_KEY, streamKey));
+            //2.重复下单和库存不足都不写入stream
+            Assertions.assertEquals(SeckillStock.DUPLICATE, seckillStock.seckill(voucherId, 1L, orderId + 1));
+            Assertions.assertEquals(SeckillStock.NO_STOCK, seckillStock.seckill(voucherId, 2L, orderId + 2));
+            Assertions.assertEquals(1L, stringRedisTemplate.opsForStream().size(streamKey));
+        } finally {
+            stringRedisTemplate.delete(keys);
+            stringRedisTemplate.opsForSet().remove(ORDER_STREAM_REGISTRY_KEY, streamKey);
+        }
+    }
+
+    @Test
+    void testOrderStatus() {
+        //使用独立的优惠券id，不与其它测试的订单冲突
+        VoucherOrder order = newVoucherOrder(1L, 900004L);
+        try {
+            //1.秒杀成功后为处理中，其他用户查询不到
+            orderStatusRegistry.markPending(order.getId(), order.getUserId(), order.getVoucherId());
+            Assertions.assertEquals("订单不存在", ((Result) orderStatusRegistry.query(order.getId(), 2L, false).getResult()).getErrorMsg());
+            Assertions.assertEquals(order.getId(), orderStatusRegistry.findOrderId(order.getVoucherId(), order.getUserId()));
+            DeferredResult<Result> waiting = orderStatusRegistry.query(order.getId(), 1L, true);
+            Assertions.assertFalse(waiting.hasResult());
+            //2.创建成功后唤醒等待的请求，之后写入的处理中不会覆盖结果
+            orderStatusRegistry.markCreated(Collections.singletonList(order));
+            orderStatusRegistry.onStatusChange(order.getId().toString());
+            Assertions.assertEquals(OrderStatusRegistry.CREATED, ((Map<?, ?>) ((Result) waiting.getResult()).getData()).get("status"));
+            orderStatusRegistry.markPending(order.getId(), order.getUserId(), order.getVoucherId());
+            Map<?, ?> status = (Map<?, ?>) ((Result) orderStatusRegistry.query(order.getId(), 1L, true).getResult()).getData();
+            Assertions.assertEquals(OrderStatusRegistry.CREATED, status.get("status"));
+        } finally {
+            stringRedisTemplate.delete(Arrays.asList(ORDER_STATUS_KEY + order.getId(),
+                    ORDER_ID_KEY + order.getVoucherId() + ":" + order.getUserId()));
+        }
+    }
+
+    @Test
+    void testIdempotentOrderInsert() {
+        long voucherId = 900003L;
+        SeckillVoucher seckillVoucher = new SeckillVoucher();
+        seckillVoucher.setVoucherId(voucherId);
+        seckillVoucher.setStock(10);
+        seckillVoucher.setBeginTime(LocalDateTime.now());
+        seckillVoucher.setEndTime(LocalDateTime.now().plusDays(1));
+        seckillVoucherService.save(seckillVoucher);
+        try {
+            VoucherOrder order = newVoucherOrder(1L, voucherId);
+            //1.同一订单重复投递，只扣减一次库存
+            voucherOrderService.createVoucherOrder(order);
+            voucherOrderService.createVoucherOrder(order);
+            voucherOrderService.createVoucherOrders(Collections.singletonList(order));
+            //2.同一用户的另一个订单被唯一索引拒绝
+            voucherOrderService.createVoucherOrder(newVoucherOrder(1L, voucherId));
+            voucherOrderService.createVoucherOrders(Arrays.asList(newVoucherOrder(1L, voucherId), newVoucherOrder(2L, voucherId)));
+            Assertions.assertEquals(8, seckillVoucherService.getById(voucherId).getStock());
+            Assertions.assertEquals(2, voucherOrderService.query().eq("voucher_id", voucherId).count());
+        } finally {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
+
+    private VoucherOrder newVoucherOrder(Long userId, Long voucherId) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(redisIdWorker.nextId("order"));
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        return voucherOrder;
+    }
 
     @Test
     void testSaveShop() throws InterruptedException {
@@ -67,6 +244,21 @@ class HmDianPingApplicationTests {
         cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + 1L,shop,10L, TimeUnit.SECONDS);
     }
 
+    @Test
+    void testCacheOutbox() throws InterruptedException {
+        Shop shop = shopService.getById(1L);
+        String key = CACHE_SHOP_KEY + 1L;
+        cacheClient.set(key, shop, 30L, TimeUnit.MINUTES);
+        //1.没有事务时记录变更，立即删除一次
+        cacheOutboxService.record(ICacheOutboxService.TABLE_SHOP, 1L);
+        Assertions.assertFalse(stringRedisTemplate.hasKey(key));
+        //2.模拟并发读请求写回旧数据，延迟后的第二次删除会再次清除
+        cacheClient.set(key, shop, 30L, TimeUnit.MINUTES);
+        Thread.sleep(1500);
+        cacheOutboxService.consume();
+        Assertions.assertFalse(stringRedisTemplate.hasKey(key));
+    }
+
     @Test
     void loadShopData(){
         //1.查询店铺信息
@@ -0,0 +1,288 @@
+package com.hmdp;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_VOUCHER_KEY;
+
+/**
+ * 秒杀压测：多个用户并发请求/voucher-order/seckill/{id}，统计吞吐量和延迟分位数，
+ * 订单全部异步创建完成后校验没有超卖、没有一人多单、秒杀成功的订单都已经落库
+ * 需要本地的mysql、redis和rabbitmq（transport为stream时不需要），地址见application-load.yaml
+ * 默认不执行，运行方式：mvn -P load test，参数通过系统属性指定，如 -Dload.users=5000 -Dload.stock=1000
+ */
+@Tag("load")
+@ActiveProfiles("load")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class SeckillLoadTest {
+
+    /**
+     * 压测用户的id从这里开始，避免与真实用户重复
+     */
+    private static final long USER_ID_BASE = 9_000_000_000L;
+
+    private final int users = Integer.getInteger("load.users", 2000);
+    private final int vouchers = Integer.getInteger("load.vouchers", 2);
+    private final int stock = Integer.getInteger("load.stock", 500);
+    private final int requestsPerUser = Integer.getInteger("load.requests-per-user", 2);
+    private final int concurrency = Integer.getInteger("load.concurrency", 200);
+    private final long drainTimeout = Long.getLong("load.drain-timeout", 60000L);
+
+    @LocalServerPort
+    private int port;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final List<Long> voucherIds = new ArrayList<>();
+
+    private final List<String> tokens = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        //1.创建秒杀券，库存同时写入数据库和redis
+        for (int i = 0; i < vouchers; i++) {
+            Voucher voucher = new Voucher();
+            voucher.setShopId(1L);
+            voucher.setTitle("压测秒杀券" + i);
+            voucher.setPayValue(100L);
+            voucher.setActualValue(1000L);
+            voucher.setType(1);
+            voucher.setStatus(1);
+            voucher.setStock(stock);
+            voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+            voucher.setEndTime(LocalDateTime.now().plusHours(1));
+            voucherService.addSeckillVoucher(voucher);
+            voucherIds.add(voucher.getId());
+        }
+        //2.直接在redis中写入登录用户，不经过短信登录
+        for (int i = 0; i < users; i++) {
+            tokens.add(UUID.randomUUID().toString(true));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < users; i++) {
+                Map<String, String> user = new HashMap<>(4);
+                user.put("id", String.valueOf(USER_ID_BASE + i));
+                user.put("nickName", "load_" + i);
+                user.put("icon", "");
+                String key = LOGIN_USER_KEY + tokens.get(i);
+                stringRedisConnection.hMSet(key, user);
+                stringRedisConnection.expire(key, TimeUnit.HOURS.toSeconds(1));
+            }
+            return null;
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (Long voucherId : voucherIds) {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+            voucherService.removeById(voucherId);
+            stringRedisTemplate.delete(Arrays.asList(SeckillStock.voucherKey(voucherId),
+                    SeckillStock.orderKey(voucherId), RATE_LIMIT_VOUCHER_KEY + voucherId));
+        }
+        List<String> keys = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            keys.add(LOGIN_USER_KEY + token);
+        }
+        stringRedisTemplate.delete(keys);
+    }
+
+    @Test
+    void seckill() throws Exception {
+        //1.每个用户对每张券请求requestsPerUser次，打乱顺序，重复请求用于检验一人一单
+        List<long[]> requests = new ArrayList<>(users * vouchers * requestsPerUser);
+        for (int u = 0; u < users; u++) {
+            for (int v = 0; v < vouchers; v++) {
+                for (int r = 0; r < requestsPerUser; r++) {
+                    requests.add(new long[]{u, voucherIds.get(v)});
+                }
+            }
+        }
+        Collections.shuffle(requests, ThreadLocalRandom.current());
+        //2.并发发送请求，记录每个请求的延迟和结果
+        long[] latencies = new long[requests.size()];
+        AtomicInteger cursor = new AtomicInteger();
+        Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        Map<Long, LongAdder> succeeded = new ConcurrentHashMap<>();
+        ExecutorService es = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch latch = new CountDownLatch(concurrency);
+        long begin = System.nanoTime();
+        for (int t = 0; t < concurrency; t++) {
+            es.submit(() -> {
+                try {
+                    int i;
+                    while ((i = cursor.getAndIncrement()) < requests.size()) {
+                        long[] request = requests.get(i);
+                        long start = System.nanoTime();
+                        String outcome = post(tokens.get((int) request[0]), request[1]);
+                        latencies[i] = System.nanoTime() - start;
+                        outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+                        if ("success".equals(outcome)) {
+                            succeeded.computeIfAbsent(request[1], k -> new LongAdder()).increment();
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+        //3.等待订单异步创建完成
+        Map<Long, Integer> expected = new HashMap<>();
+        for (Long voucherId : voucherIds) {
+            LongAdder count = succeeded.get(voucherId);
+            expected.put(voucherId, count == null ? 0 : count.intValue());
+        }
+        List<VoucherOrder> orders = awaitOrders(expected);
+        //4.输出报告
+        Arrays.sort(latencies);
+        System.out.println("========== 秒杀压测 ==========");
+        System.out.printf("用户: %d, 秒杀券: %d, 每张库存: %d, 请求数: %d, 并发: %d%n",
+                users, vouchers, stock, requests.size(), concurrency);
+        System.out.printf("吞吐量: %.1f req/s, 耗时: %d ms%n",
+                requests.size() * 1e9 / elapsed, TimeUnit.NANOSECONDS.toMillis(elapsed));
+        System.out.printf("延迟(ms) p50: %.2f, p99: %.2f, p999: %.2f, max: %.2f%n",
+                percentile(latencies, 0.5), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6);
+        System.out.println("结果: " + new TreeMap<>(outcomes));
+        //5.校验：不超卖、一人一单、秒杀成功的订单全部落库、数据库库存与订单数一致
+        Set<String> buyers = new HashSet<>();
+        Map<Long, Integer> ordersByVoucher = new HashMap<>();
+        for (VoucherOrder order : orders) {
+            Assertions.assertTrue(buyers.add(order.getUserId() + ":" + order.getVoucherId()),
+                    "一人多单, userId: " + order.getUserId() + ", voucherId: " + order.getVoucherId());
+            ordersByVoucher.merge(order.getVoucherId(), 1, Integer::sum);
+        }
+        for (Long voucherId : voucherIds) {
+            int created = ordersByVoucher.getOrDefault(voucherId, 0);
+            Assertions.assertTrue(created <= stock, "超卖, voucherId: " + voucherId + ", 订单数: " + created);
+            Assertions.assertEquals(expected.get(voucherId).intValue(), created, "秒杀成功的订单没有全部落库");
+            SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+            Assertions.assertEquals(stock - created, seckillVoucher.getStock().intValue(), "数据库库存与订单数不一致");
+        }
+    }
+
+    /**
+     * 发送一次秒杀请求
+     * @return success，或者失败原因
+     */
+    private String post(String token, Long voucherId) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId)
+                    .openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("authorization", token);
+            connection.setConnectTimeout(5000);
+            connection.setReadTimeout(30000);
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            String body = read(in);
+            if (status != 200) {
+                return "http " + status;
+            }
+            JSONObject result = JSONUtil.parseObj(body);
+            return Boolean.TRUE.equals(result.getBool("success")) ? "success" : result.getStr("errorMsg");
+        } catch (IOException e) {
+            return e.getClass().getSimpleName();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        //读完响应体，连接才能复用
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 等待每张券的订单数达到秒杀成功的数量，超时后返回当前的订单
+     */
+    private List<VoucherOrder> awaitOrders(Map<Long, Integer> expected) throws InterruptedException {
+        int total = expected.values().stream().mapToInt(Integer::intValue).sum();
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query().select("id", "user_id", "voucher_id")
+                    .in("voucher_id", voucherIds).list();
+            if (orders.size() >= total || System.currentTimeMillis() > deadline) {
+                return orders;
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
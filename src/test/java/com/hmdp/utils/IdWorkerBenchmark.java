@@ -0,0 +1,92 @@
+package com.hmdp.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * id生成对比：每次INCR（原实现） vs 号段模式 vs 雪花模式
+ * INCR和号段模式需要redis，地址通过-Dredis.host、-Dredis.port指定，默认127.0.0.1:6379
+ * 运行方式：在IDE中执行main方法，或 mvn test-compile 后用 exec:java 运行
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class IdWorkerBenchmark {
+
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+
+    private LettuceConnectionFactory connectionFactory;
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisIdWorker segmentIdWorker;
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    @Setup
+    public void setup() {
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                System.getProperty("redis.host", "127.0.0.1"), Integer.getInteger("redis.port", 6379));
+        connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        segmentIdWorker = new RedisIdWorker(stringRedisTemplate, 1000, 0.2);
+        snowflakeIdWorker = new SnowflakeIdWorker(5);
+        snowflakeIdWorker.assign(1, 0, Long.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connectionFactory.destroy();
+    }
+
+    /**
+     * 原nextId的实现：每个id格式化一次日期并INCR一次
+     */
+    @Benchmark
+    public long incr() {
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        long count = stringRedisTemplate.opsForValue().increment("icr:bench:" + date);
+        return timestamp << 32 | count;
+    }
+
+    @Benchmark
+    public long segment() {
+        return segmentIdWorker.nextId("bench");
+    }
+
+    @Benchmark
+    public long snowflake() {
+        return snowflakeIdWorker.nextId();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(IdWorkerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}